@@ -27,6 +27,7 @@ public class NodeDescription {
     protected Coverage coverage;
     protected Graph description;
     protected Node root;
+    protected long generation;
 
     public NodeDescription(Node root, Graph description, Coverage coverage) {
         this.description = description;
@@ -53,6 +54,25 @@ public class NodeDescription {
         return description;
     }
     
+    public Node getRoot() {
+        return root;
+    }
+    
+    public Coverage getCoverage() {
+        return coverage;
+    }
+    
+    /**
+     * The generation of the source data from which this description was derived
+     */
+    public long getGeneration() {
+        return generation;
+    }
+    
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+    
     // -- Utility functions to make it easier to work with Nodes ----
     
     /**
@@ -0,0 +1,65 @@
+/******************************************************************
+ * File:        PreparedQuery.java
+ * Created by:  Dave Reynolds
+ * Created on:  2 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+/**
+ * A select query which has been prepared for repeated use with
+ * different variable bindings, obtained from WSource.prepare.
+ * <p>
+ * Prefixes are expanded once, when the query is prepared. The bindings
+ * given to each select are passed to the source separately from the query text,
+ * local sources then reuse a single parse of the query for every call. For
+ * example, from a template:
+ * <pre>
+ *   #set($q = $source.prepare("SELECT ?l WHERE {?x rdfs:label ?l}"))
+ *   #foreach($row in $q.select("x", $item)) ... #end
+ * </pre>
+ * </p>
+ */
+public class PreparedQuery {
+    protected final WSource source;
+    protected final String query;
+
+    public PreparedQuery(WSource source, String expandedQuery) {
+        this.source = source;
+        this.query = expandedQuery;
+    }
+
+    /**
+     * The query text with prefixes expanded
+     */
+    public String getQueryString() {
+        return query;
+    }
+
+    /**
+     * Run the query.
+     * @param bindings An array of Objects, which will be taken in pairs to be a string
+     * var name and an object to encode as an RDF node.
+     */
+    public WResultSet select(Object...bindings) {
+        return source.selectPrepared(this, 0, bindings);
+    }
+
+    /**
+     * Run the query, aborting it if it takes longer than the given time.
+     * @param timeout time limit in milliseconds, 0 to use the source's default
+     * @param bindings An array of Objects, which will be taken in pairs to be a string
+     * var name and an object to encode as an RDF node.
+     */
+    public WResultSet selectWithTimeout(long timeout, Object...bindings) {
+        return source.selectPrepared(this, timeout, bindings);
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+}
@@ -0,0 +1,28 @@
+/******************************************************************
+ * File:        RequestScopedSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  4 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+/**
+ * A SparqlSource which can share resources, such as a read transaction,
+ * between all the queries made on one thread while handling a request.
+ * WSource signals the start and end of each render (see WSource.startRequest).
+ */
+public interface RequestScopedSource {
+
+    /**
+     * Start of a request on the calling thread
+     */
+    public void beginRequest();
+
+    /**
+     * End of a request on the calling thread, release anything held for it
+     */
+    public void endRequest();
+}
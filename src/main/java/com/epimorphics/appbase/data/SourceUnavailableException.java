@@ -0,0 +1,25 @@
+/******************************************************************
+ * File:        SourceUnavailableException.java
+ * Created by:  Dave Reynolds
+ * Created on:  26 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import com.epimorphics.util.EpiException;
+
+/**
+ * Thrown when a source refuses a query without attempting it, because
+ * the endpoint is believed to be down or is already fully loaded.
+ * Callers may fall back to stale cached information.
+ */
+public class SourceUnavailableException extends EpiException {
+    private static final long serialVersionUID = 1L;
+
+    public SourceUnavailableException(String message) {
+        super(message);
+    }
+}
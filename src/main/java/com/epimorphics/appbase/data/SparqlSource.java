@@ -9,8 +9,11 @@
 
 package com.epimorphics.appbase.data;
 
+import java.util.concurrent.Future;
+
 import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.query.DatasetAccessor;
+import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.update.UpdateRequest;
 
@@ -28,6 +31,22 @@ public interface SparqlSource {
      */
     public ResultSet select(String query);
     
+    /**
+     * Execute a sparql select query, as for select(query), but abort it
+     * if it runs for longer than the given time.
+     * @param timeout time limit in milliseconds, 0 for the source's default limit
+     */
+    public ResultSet select(String query, long timeout);
+    
+    /**
+     * Execute a sparql select query with some of its variables bound to
+     * given values. Sources which parse queries locally reuse the parsed form
+     * across calls with different bindings, others substitute the values into the query text.
+     * @param bindings values for query variables, may be null
+     * @param timeout time limit in milliseconds, 0 for the source's default limit
+     */
+    public ResultSet select(String query, QuerySolution bindings, long timeout);
+    
     /**
      * Execute a sparql select query returning a possibly streamable result set.
      * The result set must be closed to free any associated resources (e.g. an HTTP connection
@@ -55,6 +74,24 @@ public interface SparqlSource {
      */
     public Graph construct(String query);
     
+    /**
+     * Start a select query running in the background, returning
+     * a local, safe copy of the results when complete. The number of
+     * queries run concurrently on behalf of a source is bounded, when that
+     * limit is reached the query will run on the calling thread.
+     */
+    public Future<ResultSet> selectAsync(String query);
+    
+    /**
+     * Start a fetch of the descriptions of a set of resources running in the background.
+     */
+    public Future<Graph[]> describeEachAsync(String... uris);
+    
+    /**
+     * Start a construct query running in the background.
+     */
+    public Future<Graph> constructAsync(String query);
+    
     /**
      * A local name for the source (the component name in the configuration)
      */
@@ -77,4 +114,18 @@ public interface SparqlSource {
      * Returns null of no such update is supported
      */
     public DatasetAccessor getAccessor();
+    
+    /**
+     * Return a generation count for the source data. This is incremented
+     * whenever the data is changed through this source (updates, accessor writes
+     * or reloads) so that caches of derived information can check they are still current.
+     * Changes made to a remote store by other routes will not be seen.
+     */
+    public long getGeneration();
+    
+    /**
+     * Signal that the data in the source has changed by some route
+     * not visible to the source itself, invalidating derived caches.
+     */
+    public void incrementGeneration();
 }
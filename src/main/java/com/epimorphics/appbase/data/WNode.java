@@ -318,6 +318,7 @@ public class WNode {
     }
     
     protected WNode getNode(Node n) {
+        if (n == null) return null;
         WNode result = source.get(n);
         if (n.isBlank()) {
             result.setDescription( description );
@@ -12,15 +12,35 @@ package com.epimorphics.appbase.data;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.collections.map.LRUMap;
+import javax.management.ObjectName;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
 import com.epimorphics.appbase.data.NodeDescription.Coverage;
+import com.epimorphics.appbase.data.impl.CompactGraph;
+import com.epimorphics.appbase.data.impl.DescriptionStore;
+import com.epimorphics.appbase.data.impl.WResultSetMaterialized;
+import com.epimorphics.appbase.data.impl.WResultSetStream;
 import com.epimorphics.appbase.data.impl.WResultSetWrapper;
+import com.epimorphics.appbase.util.BoundedCache;
+import com.epimorphics.appbase.util.MBeans;
+import com.epimorphics.appbase.util.MappedFuture;
 import com.epimorphics.rdfutil.QueryUtil;
+import com.epimorphics.tasks.ProgressMonitorReporter;
+import com.epimorphics.tasks.SimpleProgressMonitor;
+import com.epimorphics.tasks.TaskState;
 import com.epimorphics.util.EpiException;
 import com.epimorphics.util.PrefixUtils;
 import com.hp.hpl.jena.graph.Graph;
@@ -42,27 +62,476 @@ import com.hp.hpl.jena.util.OneToManyMap;
  * A wrapped SPARQL source, designed for easy use from UI scripting.
  * Uses app-wide prefix configuration to expand queries, provides caching
  * of resource descriptions to simplify use of remote sources.
+ * <p>
+ * If batchLabels is set then uncached nodes handed out by this source
+ * are remembered (per thread) and the first lazy request for a label
+ * fetches labels for all of them in one query. This avoids a query per
+ * node when templates iterate over results asking for labels. The 
+ * batch is cleared at the start and end of each request, see startRequest.
+ * Batching only happens within a request, outside of one nodes are not remembered.
+ * </p>
+ * <p>
+ * If persistentCache is set to a directory then descriptions are also written
+ * to a local store there, which is consulted on a cache miss before querying the
+ * source and used to refill the cache when the app restarts. Since we can't tell
+ * whether the data changed while the app was down, persisted descriptions are only
+ * reused after a restart if persistentCacheEpoch is set (and unchanged) or a
+ * persistentCacheTTL bounds how out of date they can be.
+ * </p>
+ * <p>
+ * A set of known, commonly used, resources can be loaded into the cache
+ * in the background at startup by setting warmupURIs (a comma separated list)
+ * and/or warmupQuery (a SELECT query whose first result variable gives
+ * the resources). By default just labels are loaded, set warmupCoverage to "full"
+ * to load full descriptions. Progress can be checked via getWarmupMonitor.
+ * Since the app config splits lines on "=" the warmup query can't include one.
+ * </p>
+ * <p>
+ * Resources found to have no description (or no labels) are remembered
+ * for a while (negativeCacheTTL, default 10 minutes) so that repeated
+ * lookups of unknown URIs don't each cost a query. Like the main cache
+ * these entries are dropped as soon as the source is updated.
+ * </p>
+ * <p>
+ * If the source refuses queries because its endpoint is down or overloaded
+ * (see RemoteSparqlSource maxConcurrency and breakerThreshold) then out of date
+ * cached descriptions are used, where they exist, rather than failing the render.
+ * </p>
+ * <p>
+ * The prefix expansion of recently used query texts is remembered. For queries
+ * run many times with different bindings use prepare, which also lets local
+ * sources reuse the parsed query rather than parsing each variant.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
-public class WSource extends ComponentBase {
+public class WSource extends ComponentBase implements Shutdown {
+    static Logger log = LoggerFactory.getLogger(WSource.class);
+    
     protected static final int DEFAULT_CACHESIZE = 1000;
+    protected static final int DEFAULT_BATCH_LIMIT = 200;
+    protected static final int DEFAULT_NEGATIVE_CACHESIZE = 1000;
+    protected static final long DEFAULT_NEGATIVE_TTL = 10 * 60 * 1000;  // 10 minutes
+    protected static final int DEFAULT_PREPARED_CACHESIZE = 200;
     
     protected SparqlSource source;
-    protected Map<Node, NodeDescription> cache;
+    protected int cacheSize = DEFAULT_CACHESIZE;
+    protected long cacheMaxTriples = Long.MAX_VALUE;
+    protected long cacheTTL = 0;
+    protected boolean batchLabels = false;
+    protected boolean compactCache = true;
+    protected int batchLimit = DEFAULT_BATCH_LIMIT;
+    protected ThreadLocal<RequestState> requestState = new ThreadLocal<>();
+    protected BoundedCache<Node, NodeDescription> cache;
         // Cache descriptions rather than nodes so we can mutate a WNode with a new description without thread conflicts
+        // The cache is safe for concurrent use so lookups don't need to synchronize
+    protected BoundedCache<Node, Absence> negativeCache;
+        // Nodes we have looked up and found no description or labels for
+    protected int negativeCacheSize = DEFAULT_NEGATIVE_CACHESIZE;
+    protected long negativeCacheTTL = DEFAULT_NEGATIVE_TTL;
+    protected BoundedCache<String, PreparedQuery> preparedQueries = new BoundedCache<>(DEFAULT_PREPARED_CACHESIZE);
+        // Prefix expanded forms of recently used queries
+    protected ConcurrentHashMap<FetchKey, PendingFetch> inflight = new ConcurrentHashMap<>();
+        // Fetches currently in progress, so concurrent misses on the same node wait rather than repeat the query
+    protected String persistentCacheDir;
+    protected long persistentCacheTTL = 0;
+    protected String persistentCacheEpoch;
+    protected DescriptionStore store;
+    protected long storeGeneration;
+    protected long storeValidFrom = 0;
+    protected String warmupQuery;
+    protected String warmupURIs;
+    protected Coverage warmupCoverage = Coverage.LABEL;
+    protected SimpleProgressMonitor warmupMonitor;
+    protected WSourceStats stats = new WSourceStats(this);
+    protected ObjectName statsName;
     
     public WSource() {
-        setCacheSize(DEFAULT_CACHESIZE);
+        resetCache();
+        resetNegativeCache();
+    }
+    
+    @Override
+    public void startup(App app) {
+        super.startup(app);
+        registerStats();
+        if (persistentCacheDir != null) {
+            store = new DescriptionStore(asFile(persistentCacheDir), persistentCacheTTL, persistentCacheEpoch);
+            storeGeneration = source.getGeneration();
+        }
+        final boolean needsWarmup = warmupQuery != null || warmupURIs != null;
+        if (needsWarmup) {
+            warmupMonitor = new SimpleProgressMonitor("warmup-" + getName());
+        }
+        if (store != null || needsWarmup) {
+            Thread warmup = new Thread("WSource cache warmup - " + getName()) {
+                public void run() {
+                    if (store != null) {
+                        reloadFromStore();
+                    }
+                    if (needsWarmup) {
+                        warmup();
+                    }
+                }
+            };
+            warmup.setDaemon(true);
+            warmup.start();
+        }
+    }
+    
+    /**
+     * Set a comma-separated list of resources (URIs or curies) to load
+     * into the cache at startup.
+     */
+    public void setWarmupURIs(String uris) {
+        warmupURIs = uris;
+    }
+    
+    /**
+     * Set a SELECT query whose first result variable gives a set of resources
+     * to load into the cache at startup.
+     */
+    public void setWarmupQuery(String query) {
+        warmupQuery = query;
+    }
+    
+    /**
+     * Set whether warmup should load labels ("label", the default) or full descriptions ("full").
+     */
+    public void setWarmupCoverage(String coverage) {
+        warmupCoverage = coverage.equalsIgnoreCase("full") ? Coverage.FULL : Coverage.LABEL;
+    }
+    
+    /**
+     * Return a monitor reporting the progress of the startup warmup, or null if
+     * no warmup is configured.
+     */
+    public ProgressMonitorReporter getWarmupMonitor() {
+        return warmupMonitor;
+    }
+    
+    protected void warmup() {
+        List<String> uris = new ArrayList<>();
+        try {
+            if (warmupURIs != null) {
+                for (String uri : warmupURIs.split(",")) {
+                    if ( ! uri.trim().isEmpty() ) {
+                        uris.add( getApp().getPrefixes().expandPrefix(uri.trim()) );
+                    }
+                }
+            }
+            if (warmupQuery != null) {
+                ResultSet rs = source.select( expandQuery(warmupQuery) );
+                String var = rs.getResultVars().get(0);
+                while (rs.hasNext()) {
+                    RDFNode n = rs.next().get(var);
+                    if (n != null && n.isURIResource()) {
+                        uris.add( n.asResource().getURI() );
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to find resources for cache warmup of " + getName(), e);
+            warmupMonitor.report("Failed to find resources for warmup: " + e);
+            warmupMonitor.setFailed();
+            return;
+        }
+        warmup(uris, warmupCoverage, warmupMonitor);
+    }
+    
+    /**
+     * Load descriptions of a set of resources into the cache. Resources are
+     * fetched in batches of up to batchLimit at a time.
+     * @param uris the resources to load
+     * @param coverage whether to load just labels (LABEL) or full descriptions (FULL)
+     * @param monitor progress reporter
+     */
+    public void warmup(List<String> uris, Coverage coverage, ProgressMonitorReporter monitor) {
+        monitor.setState(TaskState.Running);
+        long start = System.currentTimeMillis();
+        try {
+            int total = uris.size();
+            for (int i = 0; i < total; i += batchLimit) {
+                int end = Math.min(total, i + batchLimit);
+                WNode[] batch = new WNode[end - i];
+                for (int j = i; j < end; j++) {
+                    batch[j - i] = new WNode(this, NodeFactory.createURI(uris.get(j)));
+                }
+                fetch(batch, coverage);
+                monitor.setProgress( (int)(100L * end / total) );
+            }
+            String msg = String.format("Warmed cache for %s with %d resources in %dms", getName(), total, System.currentTimeMillis() - start);
+            log.info(msg);
+            monitor.report(msg);
+            monitor.setSucceeded();
+        } catch (Exception e) {
+            log.error("Cache warmup failed for " + getName(), e);
+            monitor.report("Cache warmup failed: " + e);
+            monitor.setFailed();
+        }
+    }
+    
+    @Override
+    public void shutdown() {
+        unregisterStats();
+        DescriptionStore l2 = store;
+        if (l2 != null) {
+            // Renders may still hold the store, it ignores them once closed
+            store = null;
+            l2.close();
+        }
+    }
+    
+    /**
+     * Return the cache statistics for this source. These can be
+     * returned directly from a JSON endpoint.
+     */
+    public WSourceStats getStats() {
+        return stats;
+    }
+    
+    protected void registerStats() {
+        statsName = MBeans.register(stats, "WSource", getApp().getName() + "." + getName());
+    }
+    
+    protected void unregisterStats() {
+        MBeans.unregister(statsName);
+        statsName = null;
+    }
+    
+    /**
+     * Set a directory in which to persist cached descriptions across restarts.
+     * By default there is no persistent cache.
+     */
+    public void setPersistentCache(String dir) {
+        persistentCacheDir = dir;
+    }
+    
+    /**
+     * Set a time to live (in milliseconds) for persisted descriptions, default is 0, no expiry.
+     * Persisted descriptions are in any case ignored if the source reports a change after they were stored.
+     * Unless an epoch is set, descriptions persisted by an earlier run are discarded at
+     * startup if there is no TTL.
+     */
+    public void setPersistentCacheTTL(long ttl) {
+        persistentCacheTTL = ttl;
+    }
+    
+    /**
+     * Set an identifier for the version of the source data (e.g. a release
+     * number or load date). Persisted descriptions are discarded at startup if
+     * they were stored under a different epoch, so it should be changed
+     * whenever the data is.
+     */
+    public void setPersistentCacheEpoch(String epoch) {
+        persistentCacheEpoch = epoch;
+    }
+    
+    /**
+     * Refill the cache from the persistent store
+     */
+    protected void reloadFromStore() {
+        DescriptionStore l2 = store;
+        if (l2 == null) return;
+        try {
+            long generation = source.getGeneration();
+            int count = 0;
+            for (NodeDescription nd : l2.load(cacheSize, storeValidFrom())) {
+                Node n = nd.getRoot();
+                if (cache.get(n) == null) {
+                    putCached(n, new NodeDescription(n, compact(nd.getGraph()), nd.getCoverage()), generation);
+                    count++;
+                }
+            }
+            log.info("Reloaded " + count + " cached descriptions for " + getName());
+        } catch (Exception e) {
+            log.error("Failed to reload persistent cache for " + getName(), e);
+        }
+    }
+    
+    /**
+     * Return the time from which persisted descriptions are valid, which
+     * is the last time we saw the source change.
+     */
+    protected synchronized long storeValidFrom() {
+        long generation = source.getGeneration();
+        if (generation != storeGeneration) {
+            storeGeneration = generation;
+            storeValidFrom = System.currentTimeMillis();
+        }
+        return storeValidFrom;
     }
     
     public void setSource(SparqlSource source) {
         this.source = source;
     }
     
-    @SuppressWarnings("unchecked")
+    /**
+     * If true (the default) cached descriptions are held as compact,
+     * read-only graphs rather than as fully indexed memory graphs.
+     */
+    public void setCompactCache(boolean compactCache) {
+        this.compactCache = compactCache;
+    }
+    
+    /**
+     * Enable batching of lazy label lookups, default is false.
+     */
+    public void setBatchLabels(boolean batchLabels) {
+        this.batchLabels = batchLabels;
+    }
+    
+    /**
+     * Set the maximum number of nodes to label in one batch, default is 200.
+     */
+    public void setBatchLimit(long limit) {
+        this.batchLimit = (int)limit;
+    }
+    
+    /**
+     * Set the maximum number of node descriptions to cache, default is 1000.
+     */
     public void setCacheSize(int size) {
-        cache = new LRUMap(size);
+        cacheSize = size;
+        resetCache();
+    }
+    
+    /**
+     * Set a limit on the total number of triples held across all cached
+     * descriptions. Large descriptions will then displace more small ones.
+     * By default the cache is only bounded by number of entries.
+     */
+    public void setCacheMaxTriples(long maxTriples) {
+        cacheMaxTriples = maxTriples;
+        resetCache();
+    }
+    
+    /**
+     * Set a time to live (in milliseconds) for cached descriptions.
+     * Descriptions are in any case discarded when the underlying source
+     * reports that its data has changed. Default is 0, no expiry.
+     */
+    public void setCacheTTL(long ttl) {
+        cacheTTL = ttl;
+        resetCache();
+    }
+    
+    protected void resetCache() {
+        cache = new BoundedCache<>(cacheSize, cacheMaxTriples, new TripleWeigher());
+        cache.setTimeToLive(cacheTTL, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Set the maximum number of resources which are remembered as having 
+     * no description (or no labels), default is 1000. Set to 0 to disable.
+     */
+    public void setNegativeCacheSize(long size) {
+        negativeCacheSize = (int)size;
+        resetNegativeCache();
+    }
+    
+    /**
+     * Set the time (in milliseconds) for which resources are remembered as
+     * having no description, default is 10 minutes.
+     */
+    public void setNegativeCacheTTL(long ttl) {
+        negativeCacheTTL = ttl;
+        resetNegativeCache();
+    }
+    
+    protected void resetNegativeCache() {
+        negativeCache = new BoundedCache<>(negativeCacheSize);
+        negativeCache.setTimeToLive(negativeCacheTTL, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Return true if we have recently looked for the given coverage of the node and found nothing
+     */
+    protected boolean isKnownAbsent(Node node, Coverage coverage) {
+        Absence absence = negativeCache.get(node);
+        if (absence != null && absence.generation == source.getGeneration()
+                && (absence.coverage == Coverage.FULL || coverage == Coverage.LABEL)) {
+            stats.negativeHit();
+            return true;
+        }
+        return false;
+    }
+    
+    protected void putAbsent(Node node, Coverage coverage, long generation) {
+        if (negativeCacheSize > 0) {
+            negativeCache.put(node, new Absence(coverage, generation));
+        }
+    }
+    
+    /**
+     * Return the number of lookups answered by the negative cache, each
+     * of which would otherwise have been a query to the source
+     */
+    public long getNegativeCacheHitCount() {
+        return stats.getNegativeHits();
+    }
+    
+    /**
+     * Return the number of resources currently known to have no description
+     */
+    public int getNegativeCacheSize() {
+        return negativeCache.size();
+    }
+    
+    /**
+     * Record of a failed lookup. Absence of a full description implies absence of labels.
+     */
+    protected static class Absence {
+        protected final Coverage coverage;
+        protected final long generation;
+        
+        public Absence(Coverage coverage, long generation) {
+            this.coverage = coverage;
+            this.generation = generation;
+        }
+    }
+    
+    /**
+     * Return the cached description of the node if there is one
+     * and the source data has not changed since it was retrieved.
+     */
+    protected NodeDescription getCached(Node node) {
+        NodeDescription nd = cache.get(node);
+        if (nd != null && nd.getGeneration() != source.getGeneration()) {
+            // Stale, will be replaced when the node is next described
+            return null;
+        }
+        return nd;
+    }
+    
+    protected void putCached(Node node, NodeDescription description, long generation) {
+        description.setGeneration(generation);
+        cache.put(node, description);
+    }
+    
+    /**
+     * Return the current number of triples held in cached descriptions
+     */
+    public long getCacheWeight() {
+        return cache.getWeight();
+    }
+    
+    /**
+     * Return the number of descriptions evicted from the cache to keep within its limits
+     */
+    public long getCacheEvictionCount() {
+        return cache.getEvictionCount();
+    }
+    
+    /**
+     * Weighs a cached description by the number of triples in it
+     */
+    public static class TripleWeigher implements BoundedCache.Weigher<NodeDescription> {
+        @Override
+        public long weigh(NodeDescription value) {
+            Graph g = value.getGraph();
+            return g == null ? 1 : g.size() + 1;
+        }
     }
     
     /**
@@ -74,12 +543,120 @@ public class WSource extends ComponentBase {
      * var name and an object to encode as an RDF node.
      */
     public WResultSet select(String query, Object...bindings) {
+        return select(0, query, bindings);
+    }
+    
+    /**
+     * Run a SPARQL query on the data source, aborting it if it takes
+     * longer than the given time.
+     * 
+     * @param timeout time limit in milliseconds, 0 to use the source's default (see queryTimeout)
+     * @param query the query to be executed, prefix declarations will be added 
+     * from the app-wide prefix settings.
+     * @param bindings An array of Objects, which will be taken in pairs to be a string
+     * var name and an object to encode as an RDF node.
+     */
+    public WResultSet select(long timeout, String query, Object...bindings) {
+        String expandedQuery = expandQuery(query);
+        noteQuery();
+        if (bindings.length != 0) {
+            // Passed separately so that local sources can reuse the parsed query
+            return wrap( source.select(expandedQuery, QueryUtil.createBindings(bindings), timeout) );
+        }
+        return wrap( source.select(expandedQuery, timeout) );
+    }
+    
+    /**
+     * Start a SPARQL select query running in the background, so that several
+     * independent queries can be issued in parallel. The results are wrapped
+     * when they are retrieved from the future, so should be retrieved on the thread
+     * which is going to use them (e.g. the one rendering a page).
+     * 
+     * @param query the query to be executed, prefix declarations will be added 
+     * from the app-wide prefix settings.
+     * @param bindings An array of Objects, which will be taken in pairs to be a string
+     * var name and an object to encode as an RDF node.
+     */
+    public Future<WResultSet> selectAsync(String query, Object...bindings) {
+        String expandedQuery = expandQuery(query);
+        if (bindings.length != 0) {
+            QuerySolutionMap map = QueryUtil.createBindings(bindings);
+            expandedQuery = new ParameterizedSparqlString(expandedQuery, map).toString();
+        }
+        noteQuery();
+        return new MappedFuture<ResultSet, WResultSet>( source.selectAsync(expandedQuery) ) {
+            @Override
+            protected WResultSet map(ResultSet results) {
+                return wrap(results);
+            }
+        };
+    }
+    
+    protected WResultSet wrap(ResultSet results) {
+        if (batchLabels) {
+            // Wrap all the rows up front so the nodes are available to label batches
+            return new WResultSetMaterialized(results, this);
+        }
+        return new WResultSetWrapper(results, this);
+    }
+    
+    /**
+     * Run a SPARQL select query on the data source, streaming the results
+     * rather than buffering them. Use for queries whose results may be very large
+     * (e.g. exports) so that memory use stays flat regardless of result size.
+     * <p>
+     * The results can only be iterated once, on the calling thread, and hold
+     * the source's lock, transaction or connection until they are exhausted
+     * or closed. Any results left open are closed by endRequest, so within a
+     * template render the release is guaranteed. Outside of a render the
+     * caller should close the results if it does not consume them all.
+     * </p>
+     * @param query the query to be executed, prefix declarations will be added 
+     * from the app-wide prefix settings.
+     * @param bindings An array of Objects, which will be taken in pairs to be a string
+     * var name and an object to encode as an RDF node.
+     */
+    public WResultSetStream streamSelect(String query, Object...bindings) {
         String expandedQuery = expandQuery(query);
         if (bindings.length != 0) {
             QuerySolutionMap map = QueryUtil.createBindings(bindings);
             expandedQuery = new ParameterizedSparqlString(expandedQuery, map).toString();
         }
-        return new WResultSetWrapper(source.select(expandedQuery), this);
+        noteQuery();
+        WResultSetStream results = new WResultSetStream(source.streamableSelect(expandedQuery), this);
+        RequestState state = getRequestState();
+        if (state != null) {
+            List<WResultSetStream> streams = state.streams;
+            for (Iterator<WResultSetStream> i = streams.iterator(); i.hasNext();) {
+                if (i.next().isClosed()) {
+                    i.remove();
+                }
+            }
+            streams.add(results);
+        }
+        return results;
+    }
+    
+    /**
+     * Prepare a select query for repeated use with different bindings.
+     * Prepared queries are cached so this is cheap to call each time the query is needed.
+     * 
+     * @param query the query to be executed, prefix declarations will be added 
+     * from the app-wide prefix settings.
+     */
+    public PreparedQuery prepare(String query) {
+        PreparedQuery prepared = preparedQueries.get(query);
+        if (prepared == null) {
+            prepared = new PreparedQuery(this, PrefixUtils.expandQuery(query, getApp().getPrefixes()));
+            preparedQueries.put(query, prepared);
+        }
+        return prepared;
+    }
+    
+    protected WResultSet selectPrepared(PreparedQuery query, long timeout, Object...bindings) {
+        QuerySolutionMap map = bindings.length == 0 ? null : QueryUtil.createBindings(bindings);
+        noteQuery();
+        return wrap( source.select(query.getQueryString(), map, timeout) );
     }
     
     protected String expandQuery(String query) {
@@ -135,15 +712,15 @@ public class WSource extends ComponentBase {
     
     protected void describeList(List<WNode> nodes, boolean needFull) {
         List<WNode> batch = new ArrayList<>();
-        synchronized (cache) {
-            for (WNode node : nodes) {
-                if ( ! node.isDescribed(needFull) ) {
-                    NodeDescription nd = cache.get(node);
-                    if (nd != null && (needFull ? nd.isFullDescription() : nd.hasLabels())) {
-                        node.setDescription(nd);
-                    } else {
-                        batch.add(node);
-                    }
+        for (WNode node : nodes) {
+            if ( ! node.isDescribed(needFull) ) {
+                NodeDescription nd = getCached(node.asNode());
+                if (nd != null && (needFull ? nd.isFullDescription() : nd.hasLabels())) {
+                    // Counted against what was asked for, as in fetch
+                    stats.hit(needFull ? Coverage.FULL : Coverage.LABEL);
+                    node.setDescription(nd);
+                } else {
+                    batch.add(node);
                 }
             }
         }
@@ -169,44 +746,366 @@ public class WSource extends ComponentBase {
     }
     
     protected NodeDescription describe(Node node) {
-        NodeDescription description = new NodeDescription(node, source.describeAll(node.getURI()));
-        synchronized (cache) {
-            cache.put(node, description);
-        }
+        long generation = source.getGeneration();
+        noteQuery();
+        long start = System.nanoTime();
+        NodeDescription description = new NodeDescription(node, compact( source.describeAll(node.getURI()) ));
+        stats.load(1, System.nanoTime() - start);
+        putCached(node, description, generation);
         return description;
     }
     
     protected void ensureLabeled(WNode... nodes) {
+        if (batchLabels) {
+            nodes = withPending(nodes);
+        }
+        fetch(nodes, Coverage.LABEL);
+    }
+    
+    protected void ensureDescribed(WNode... nodes) {
+        fetch(nodes, Coverage.FULL);
+    }
+    
+    /**
+     * Fetch descriptions for a set of nodes at the given coverage (LABEL or FULL).
+     * If another thread is already fetching a node then we wait for its
+     * result instead of issuing a duplicate query. A pending FULL fetch
+     * will also satisfy a LABEL request.
+     */
+    protected void fetch(WNode[] nodes, Coverage coverage) {
+        PendingFetch mine = new PendingFetch();
+        List<WNode> toFetch = new ArrayList<>();
+        List<WNode> toWait = new ArrayList<>();
+        List<PendingFetch> waitOn = new ArrayList<>();
+        for (WNode wnode : nodes) {
+            Node n = wnode.asNode();
+            NodeDescription cached = getCached(n);
+            if (cached != null && (coverage == Coverage.FULL ? cached.isFullDescription() : cached.hasLabels())) {
+                stats.hit(coverage);
+                wnode.setDescription(cached);
+                continue;
+            }
+            stats.miss(coverage);
+            if (isKnownAbsent(n, coverage)) {
+                noDescription(wnode, coverage);
+                continue;
+            }
+            PendingFetch other = null;
+            if (coverage == Coverage.LABEL) {
+                other = inflight.get( new FetchKey(n, Coverage.FULL) );
+            }
+            if (other == null) {
+                other = inflight.putIfAbsent( new FetchKey(n, coverage), mine );
+            }
+            if (other == null) {
+                toFetch.add(wnode);
+            } else {
+                stats.coalesced();
+                toWait.add(wnode);
+                waitOn.add(other);
+            }
+        }
+        
+        if ( ! toFetch.isEmpty() ) {
+            try {
+                long generation = source.getGeneration();
+                long fetched = System.currentTimeMillis();
+                boolean stale = false;
+                List<WNode> remaining = toFetch;
+                DescriptionStore l2 = store;
+                if (l2 != null) {
+                    remaining = fetchFromStore(l2, toFetch, coverage, mine);
+                }
+                if ( ! remaining.isEmpty() ) {
+                    WNode[] batch = remaining.toArray( new WNode[remaining.size()] );
+                    long start = System.nanoTime();
+                    try {
+                        if (coverage == Coverage.FULL) {
+                            fetchDescriptions(batch, mine);
+                        } else {
+                            fetchLabels(batch, mine);
+                        }
+                        stats.load(batch.length, System.nanoTime() - start);
+                    } catch (SourceUnavailableException e) {
+                        if ( ! useStale(batch, coverage, mine) ) {
+                            throw e;
+                        }
+                        stale = true;
+                    }
+                    // Stamped with the time of the fetch, so it is not taken as newer than a later change
+                    if (l2 != null && ! stale && source.getGeneration() == generation) {
+                        for (WNode wnode : remaining) {
+                            NodeDescription nd = mine.results.get( wnode.asNode() );
+                            if (nd != null) {
+                                l2.put(nd, fetched);
+                            }
+                        }
+                    }
+                }
+                for (WNode wnode : toFetch) {
+                    Node n = wnode.asNode();
+                    NodeDescription nd = mine.results.get(n);
+                    if (stale && nd != null) {
+                        // Serve what we have but don't record it as current
+                        wnode.setDescription(nd);
+                    } else if (nd != null) {
+                        putCached(n, nd, generation);
+                        wnode.setDescription(nd);
+                    } else {
+                        putAbsent(n, coverage, generation);
+                        noDescription(wnode, coverage);
+                    }
+                }
+            } finally {
+                for (WNode wnode : toFetch) {
+                    inflight.remove( new FetchKey(wnode.asNode(), coverage), mine );
+                }
+                mine.complete();
+            }
+        }
+        
+        for (int i = 0; i < toWait.size(); i++) {
+            WNode wnode = toWait.get(i);
+            NodeDescription nd = waitOn.get(i).await( wnode.asNode() );
+            if (nd != null) {
+                wnode.setDescription(nd);
+            } else {
+                noDescription(wnode, coverage);
+            }
+        }
+    }
+    
+    /**
+     * The source is refusing queries, if we have out of date descriptions
+     * for all the nodes then use those rather than fail.
+     */
+    protected boolean useStale(WNode[] nodes, Coverage coverage, PendingFetch fetch) {
+        Map<Node, NodeDescription> found = new HashMap<>();
+        for (WNode wnode : nodes) {
+            NodeDescription nd = cache.get( wnode.asNode() );
+            if (nd == null || (coverage == Coverage.FULL ? ! nd.isFullDescription() : ! nd.hasLabels())) {
+                return false;
+            }
+            found.put(wnode.asNode(), nd);
+        }
+        fetch.results.putAll(found);
+        log.warn("Source " + source.getName() + " unavailable, using out of date descriptions");
+        return true;
+    }
+    
+    /**
+     * Mark a node we have looked up but found nothing for, so
+     * that it will not be looked up again (e.g. as part of a later batch)
+     */
+    protected void noDescription(WNode wnode, Coverage coverage) {
+        if ( ! wnode.isDescribed(coverage == Coverage.FULL) ) {
+            wnode.setDescription( new NodeDescription(wnode.asNode(), new GraphMem(), coverage) );
+        }
+    }
+    
+    protected void fetchLabels(WNode[] nodes, PendingFetch fetch) {
         final String labelQuery = "    OPTIONAL {?uri skos:prefLabel ?skos_prefLabel}\n"
                 + "    OPTIONAL {?uri skos:altLabel ?skos_altLabel}\n"
                 + "    OPTIONAL {?uri rdfs:label ?rdfs_label}\n"
                 + "    OPTIONAL {?uri foaf:name ?foaf_name}\n";
         DatasetGraph dsg = constructViews(labelQuery, urisForNodes(nodes));
-        synchronized (cache) {
-            for (WNode wnode : nodes) {
-                Node n = wnode.asNode();
-                Graph g = dsg.getGraph(n);
-                if (g != null) {
-                    NodeDescription nd = new NodeDescription(n, g, Coverage.LABEL);
-                    cache.put(n, nd);
-                    wnode.setDescription(nd);
-                }
+        for (WNode wnode : nodes) {
+            Node n = wnode.asNode();
+            Graph g = dsg.getGraph(n);
+            if (g != null) {
+                fetch.results.put(n, new NodeDescription(n, compact(g), Coverage.LABEL));
             }
         }
     }
     
-    protected void ensureDescribed(WNode... nodes) {
+    protected void fetchDescriptions(WNode[] nodes, PendingFetch fetch) {
+        noteQuery();
         Graph[] graphs = source.describeEach(urisForNodes(nodes));
-        synchronized (cache) {
-            for (int i = 0; i < nodes.length; i++) {
-                WNode wnode = nodes[i];
-                Node n = wnode.asNode();
-                Graph g = graphs[i];
-                NodeDescription nd = new NodeDescription(n, g, Coverage.FULL);
-                cache.put(n, nd);
-                wnode.setDescription(nd);
+        for (int i = 0; i < nodes.length; i++) {
+            Node n = nodes[i].asNode();
+            if (graphs[i] != null && ! graphs[i].isEmpty()) {
+                fetch.results.put(n, new NodeDescription(n, compact(graphs[i]), Coverage.FULL));
+            }
+        }
+    }
+    
+    /**
+     * Find descriptions in the persistent store, returning the list of nodes not found
+     */
+    protected List<WNode> fetchFromStore(DescriptionStore store, List<WNode> nodes, Coverage coverage, PendingFetch fetch) {
+        List<WNode> remaining = new ArrayList<>();
+        long validFrom = storeValidFrom();
+        for (WNode wnode : nodes) {
+            Node n = wnode.asNode();
+            NodeDescription nd = store.get(n, coverage, validFrom);
+            if (nd != null) {
+                stats.storeHit();
+                fetch.results.put(n, new NodeDescription(n, compact(nd.getGraph()), nd.getCoverage()));
+            } else {
+                remaining.add(wnode);
             }
         }
+        return remaining;
+    }
+    
+    /**
+     * Convert a description graph to the form in which it will be cached
+     */
+    protected Graph compact(Graph graph) {
+        if (compactCache && graph != null) {
+            return CompactGraph.copyOf(graph);
+        }
+        return graph;
+    }
+    
+    // -- Request scoped batching and counting -----------------------------
+    
+    /**
+     * Start a new request (e.g. a page render) on the current thread.
+     * Resets the query count and discards any pending label batch. Sources
+     * which support it (see RequestScopedSource) may share a read transaction
+     * across the queries of the request.
+     */
+    public void startRequest() {
+        closeStreams( requestState.get() );
+        requestState.set( new RequestState() );
+        if (source instanceof RequestScopedSource) {
+            ((RequestScopedSource)source).beginRequest();
+        }
+    }
+    
+    /**
+     * Finish a request on the current thread, discarding any pending label batch
+     * and closing any streamed results which have not been fully read.
+     * Then ends any transaction the source is holding for the request.
+     */
+    public void endRequest() {
+        closeStreams( requestState.get() );
+        requestState.remove();
+        if (source instanceof RequestScopedSource) {
+            ((RequestScopedSource)source).endRequest();
+        }
+    }
+    
+    protected void closeStreams(RequestState state) {
+        if (state == null) return;
+        for (WResultSetStream stream : state.streams) {
+            try {
+                stream.close();
+            } catch (Exception e) {
+                log.warn("Failed to close streamed results", e);
+            }
+        }
+        state.streams.clear();
+    }
+    
+    /**
+     * Return the number of queries this source has issued on behalf of
+     * the current thread since startRequest.
+     */
+    public int getRequestQueryCount() {
+        RequestState state = requestState.get();
+        return state == null ? 0 : state.queryCount;
+    }
+    
+    /**
+     * Return the state of the request running on this thread, or null if
+     * there is none. State is only created by startRequest, so work on other
+     * threads (describe pools, hedged queries, warmup) is neither counted nor batched.
+     */
+    protected RequestState getRequestState() {
+        return requestState.get();
+    }
+    
+    protected void noteQuery() {
+        RequestState state = requestState.get();
+        if (state != null) {
+            state.queryCount++;
+        }
+    }
+    
+    /**
+     * Add any pending nodes that still need labels to the given batch
+     * and clear the pending set.
+     */
+    protected WNode[] withPending(WNode[] nodes) {
+        RequestState state = requestState.get();
+        if (state == null || state.pending.isEmpty()) {
+            return nodes;
+        }
+        LinkedHashSet<WNode> batch = new LinkedHashSet<>();
+        for (WNode node : nodes) {
+            batch.add(node);
+        }
+        for (WNode node : state.pending) {
+            if (batch.size() >= batchLimit) break;
+            if ( ! node.isDescribed(false) ) {
+                batch.add(node);
+            }
+        }
+        state.pending.clear();
+        return batch.toArray( new WNode[batch.size()] );
+    }
+    
+    /**
+     * Per-thread state for the current request
+     */
+    protected static class RequestState {
+        protected int queryCount = 0;
+        protected LinkedHashSet<WNode> pending = new LinkedHashSet<>();
+        protected List<WResultSetStream> streams = new ArrayList<>();
+    }
+    
+    /**
+     * Key for an in-progress fetch of a node description
+     */
+    protected static class FetchKey {
+        protected final Node node;
+        protected final Coverage coverage;
+        
+        public FetchKey(Node node, Coverage coverage) {
+            this.node = node;
+            this.coverage = coverage;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof FetchKey) 
+                    && node.equals( ((FetchKey)other).node ) 
+                    && coverage == ((FetchKey)other).coverage;
+        }
+        
+        @Override
+        public int hashCode() {
+            return node.hashCode() * 31 + coverage.hashCode();
+        }
+    }
+    
+    /**
+     * Result of a fetch which other threads may be waiting on.
+     * Results are only written by the fetching thread before it completes.
+     */
+    protected static class PendingFetch {
+        protected final CountDownLatch done = new CountDownLatch(1);
+        protected final Map<Node, NodeDescription> results = new HashMap<>();
+        
+        public void complete() {
+            done.countDown();
+        }
+        
+        /**
+         * Wait for the fetch to complete and return the description of the node,
+         * null if the fetch failed or found no description.
+         */
+        public NodeDescription await(Node node) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return results.get(node);
+        }
     }
                     
     protected String[] urisForNodes(WNode[] batch){
@@ -233,11 +1132,18 @@ public class WSource extends ComponentBase {
     public WNode get(Node node) {
         if (node == null) return null;
         if (node.isURI()) {
-            synchronized (cache) {
-                NodeDescription nd = cache.get(node);
-                if (nd != null) {
-                    return new WNode(this, node, nd);
+            NodeDescription nd = getCached(node);
+            if (nd != null) {
+                // Not counted as a hit, hits and misses are only counted where a description is needed
+                return new WNode(this, node, nd);
+            }
+            RequestState state = batchLabels ? getRequestState() : null;
+            if (state != null) {
+                WNode wnode = new WNode(this, node);
+                if (state.pending.size() < batchLimit) {
+                    state.pending.add(wnode);
                 }
+                return wnode;
             }
         }
         return new WNode(this, node);
@@ -313,6 +1219,7 @@ public class WSource extends ComponentBase {
      * @return a dataset with a graph for each described node
      */
     public DatasetGraph constructViews(String queryBody, String... uris) {
+        noteQuery();
         ResultSet rs = source.select( expandQuery( makeViewQuery(queryBody, uris) ) );
         DatasetGraph views = DatasetGraphFactory.createMem();
         Var var = Var.alloc("uri");
@@ -373,6 +1280,7 @@ public class WSource extends ComponentBase {
      * @return
      */
     public Map<WNode, OneToManyMap<String, WNode>> getView(String queryString, String varname) {
+        noteQuery();
         ResultSet rs = source.select( expandQuery(queryString) );
         Map<WNode, OneToManyMap<String, WNode>> results = new HashMap<>();
         Var var = Var.alloc(varname);
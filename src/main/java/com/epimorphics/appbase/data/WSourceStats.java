@@ -0,0 +1,232 @@
+/******************************************************************
+ * File:        WSourceStats.java
+ * Created by:  Dave Reynolds
+ * Created on:  16 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.epimorphics.appbase.data.NodeDescription.Coverage;
+import com.epimorphics.json.JSFullWriter;
+import com.epimorphics.json.JSONWritable;
+
+/**
+ * Counters recording how effective the description cache of a WSource is.
+ * Available from WSource.getStats, registered as a JMX bean when the
+ * source starts and can be returned directly from a JSON endpoint.
+ * <p>
+ * Hits and misses are counted per coverage (label or full description), a
+ * miss which is answered by the negative cache, the persistent store or by
+ * waiting for another thread's query is counted as such. Loads are the queries
+ * actually issued to the source, with a histogram of the time they took.
+ * </p>
+ *
+ * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
+ */
+public class WSourceStats implements WSourceStatsMBean, JSONWritable {
+    protected static final long[] BUCKETS = new long[]{1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    protected WSource source;
+    protected final AtomicLong labelHits = new AtomicLong();
+    protected final AtomicLong labelMisses = new AtomicLong();
+    protected final AtomicLong fullHits = new AtomicLong();
+    protected final AtomicLong fullMisses = new AtomicLong();
+    protected final AtomicLong negativeHits = new AtomicLong();
+    protected final AtomicLong storeHits = new AtomicLong();
+    protected final AtomicLong coalesced = new AtomicLong();
+    protected final AtomicLong loads = new AtomicLong();
+    protected final AtomicLong loadedNodes = new AtomicLong();
+    protected final AtomicLong loadNanos = new AtomicLong();
+    protected final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+
+    public WSourceStats(WSource source) {
+        this.source = source;
+    }
+
+    protected void hit(Coverage coverage) {
+        (coverage == Coverage.FULL ? fullHits : labelHits).incrementAndGet();
+    }
+
+    protected void miss(Coverage coverage) {
+        (coverage == Coverage.FULL ? fullMisses : labelMisses).incrementAndGet();
+    }
+
+    protected void negativeHit() {
+        negativeHits.incrementAndGet();
+    }
+
+    protected void storeHit() {
+        storeHits.incrementAndGet();
+    }
+
+    protected void coalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    /**
+     * Record a query to the source to fetch the given number of nodes.
+     */
+    protected void load(int nodes, long elapsedNanos) {
+        loads.incrementAndGet();
+        loadedNodes.addAndGet(nodes);
+        loadNanos.addAndGet(elapsedNanos);
+        long ms = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && ms >= BUCKETS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+    }
+
+    @Override
+    public int getCacheSize() {
+        return source.cache.size();
+    }
+
+    @Override
+    public int getMaxCacheSize() {
+        return source.cache.getMaxSize();
+    }
+
+    @Override
+    public long getCacheWeight() {
+        return source.cache.getWeight();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return source.cache.getEvictionCount();
+    }
+
+    @Override
+    public long getLabelHits() {
+        return labelHits.get();
+    }
+
+    @Override
+    public long getLabelMisses() {
+        return labelMisses.get();
+    }
+
+    @Override
+    public long getFullHits() {
+        return fullHits.get();
+    }
+
+    @Override
+    public long getFullMisses() {
+        return fullMisses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = labelHits.get() + fullHits.get();
+        long total = hits + labelMisses.get() + fullMisses.get();
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    @Override
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    @Override
+    public int getNegativeCacheSize() {
+        return source.negativeCache.size();
+    }
+
+    @Override
+    public long getStoreHits() {
+        return storeHits.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    @Override
+    public long getLoadedNodeCount() {
+        return loadedNodes.get();
+    }
+
+    @Override
+    public double getMeanLoadTime() {
+        long n = loads.get();
+        return n == 0 ? 0.0 : loadNanos.get() / (n * 1000000.0);
+    }
+
+    @Override
+    public long[] getLoadTimeBuckets() {
+        return BUCKETS.clone();
+    }
+
+    @Override
+    public long[] getLoadTimeHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLong counter : new AtomicLong[]{labelHits, labelMisses, fullHits, fullMisses,
+                negativeHits, storeHits, coalesced, loads, loadedNodes, loadNanos}) {
+            counter.set(0);
+        }
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+    }
+
+    @Override
+    public void writeTo(JSFullWriter out) {
+        out.startObject();
+        out.pair("name", String.valueOf( source.getName() ));
+        out.pair("size", getCacheSize());
+        out.pair("maxSize", getMaxCacheSize());
+        out.pair("weight", getCacheWeight());
+        out.pair("evictions", getEvictionCount());
+        out.pair("labelHits", getLabelHits());
+        out.pair("labelMisses", getLabelMisses());
+        out.pair("fullHits", getFullHits());
+        out.pair("fullMisses", getFullMisses());
+        out.pair("hitRatioPercent", Math.round( getHitRatio() * 100 ));
+        out.pair("negativeHits", getNegativeHits());
+        out.pair("negativeSize", getNegativeCacheSize());
+        out.pair("storeHits", getStoreHits());
+        out.pair("coalesced", getCoalescedCount());
+        out.pair("loads", getLoadCount());
+        out.pair("loadedNodes", getLoadedNodeCount());
+        out.pair("loadTimeMs", TimeUnit.NANOSECONDS.toMillis( loadNanos.get() ));
+        out.key("loadTimeHistogram");
+        out.startArray();
+        long[] counts = getLoadTimeHistogram();
+        for (int i = 0; i < counts.length; i++) {
+            out.arrayElementProcess();
+            out.startObject();
+            if (i < BUCKETS.length) {
+                out.pair("underMs", BUCKETS[i]);
+            }
+            out.pair("count", counts[i]);
+            out.finishObject();
+        }
+        out.finishArray();
+        out.finishObject();
+    }
+
+}
@@ -0,0 +1,61 @@
+/******************************************************************
+ * File:        WSourceStatsMBean.java
+ * Created by:  Dave Reynolds
+ * Created on:  16 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+/**
+ * JMX view of the cache statistics for a WSource.
+ *
+ * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
+ */
+public interface WSourceStatsMBean {
+
+    public int getCacheSize();
+
+    public int getMaxCacheSize();
+
+    public long getCacheWeight();
+
+    public long getEvictionCount();
+
+    public long getLabelHits();
+
+    public long getLabelMisses();
+
+    public long getFullHits();
+
+    public long getFullMisses();
+
+    /** Fraction of all lookups which were answered from the cache */
+    public double getHitRatio();
+
+    public long getNegativeHits();
+
+    public int getNegativeCacheSize();
+
+    public long getStoreHits();
+
+    public long getCoalescedCount();
+
+    public long getLoadCount();
+
+    public long getLoadedNodeCount();
+
+    /** Mean time taken by a load query, in milliseconds */
+    public double getMeanLoadTime();
+
+    /** Upper bounds, in milliseconds, of the load time histogram buckets */
+    public long[] getLoadTimeBuckets();
+
+    /** Number of loads in each load time bucket, the last bucket has no upper bound */
+    public long[] getLoadTimeHistogram();
+
+    /** Zero the counters, leaves the cache itself untouched */
+    public void reset();
+}
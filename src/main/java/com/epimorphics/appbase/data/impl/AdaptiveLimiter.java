@@ -0,0 +1,203 @@
+/******************************************************************
+ * File:        AdaptiveLimiter.java
+ * Created by:  Dave Reynolds
+ * Created on:  26 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.data.SourceUnavailableException;
+
+/**
+ * Limits the number of concurrent queries to a remote endpoint and acts
+ * as a circuit breaker if the endpoint starts failing. This stops a slow or
+ * dead endpoint from tying up every request thread in the app.
+ * <p>
+ * The concurrency limit adapts (additive increase, multiplicative decrease).
+ * Each successful, reasonably quick, query made while the limit is fully used
+ * raises the limit slightly, up to the configured maximum. Each failure, or
+ * query slower than slowTime, cuts the limit back. When the limit is reached
+ * further queries are refused immediately rather than queued.
+ * </p>
+ * <p>
+ * If breakerThreshold consecutive queries fail the breaker opens and all
+ * queries are refused for resetTime. After that a single probe query is let
+ * through (half open), if it succeeds the breaker closes again, if not it
+ * stays open for another period. Only the probe decides, queries which were
+ * already running when the breaker opened don't close or reopen it.
+ * </p>
+ * <p>
+ * Refused queries throw a SourceUnavailableException.
+ * </p>
+ */
+public class AdaptiveLimiter implements AdaptiveLimiterMBean {
+    static Logger log = LoggerFactory.getLogger(AdaptiveLimiter.class);
+
+    public static enum State {CLOSED, OPEN, HALF_OPEN};
+
+    protected static final double BACKOFF = 0.75;
+
+    protected final String name;
+    protected final int maxLimit;
+    protected final long slowNanos;
+    protected final int breakerThreshold;
+    protected final long resetNanos;
+
+    protected double limit;
+    protected int inflight = 0;
+    protected State state = State.CLOSED;
+    protected int consecutiveFailures = 0;
+    protected long openedAt;
+    protected boolean probing = false;
+    protected long rejections = 0;
+    protected long failures = 0;
+
+    /**
+     * Construct a limiter
+     * @param name name of the source, for logging
+     * @param maxLimit the maximum number of concurrent queries
+     * @param slowTime queries taking longer than this (in milliseconds) are taken as a sign of overload
+     * @param breakerThreshold number of consecutive failures which trip the breaker, 0 for no breaker
+     * @param resetTime time (in milliseconds) for which the breaker stays open before probing
+     */
+    public AdaptiveLimiter(String name, int maxLimit, long slowTime, int breakerThreshold, long resetTime) {
+        this.name = name;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = this.maxLimit;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowTime);
+        this.breakerThreshold = breakerThreshold;
+        this.resetNanos = TimeUnit.MILLISECONDS.toNanos(resetTime);
+    }
+
+    /**
+     * Obtain permission to start a query, throws SourceUnavailableException if refused.
+     * Each successful call must be matched by a call to release or cancel.
+     * @return true if this query is the probe of a half open breaker, to be passed back on release
+     */
+    public synchronized boolean acquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < resetNanos) {
+                reject("circuit breaker open");
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                reject("circuit breaker probing");
+            }
+            probing = true;
+            inflight++;
+            return true;
+        } else if (inflight >= (int)limit) {
+            reject("concurrency limit of " + (int)limit + " reached");
+        }
+        inflight++;
+        return false;
+    }
+
+    /**
+     * Record the outcome of a query
+     * @param probe the value returned by acquire for this query
+     * @param success false if the query failed in a way that suggests a problem with the endpoint
+     * @param elapsedNanos time the query took
+     */
+    public synchronized void release(boolean probe, boolean success, long elapsedNanos) {
+        boolean saturated = inflight >= (int)limit;
+        inflight--;
+        boolean probed = probe && state == State.HALF_OPEN;
+        if (probe) {
+            probing = false;
+        }
+        if (success) {
+            consecutiveFailures = 0;
+            if (probed) {
+                log.info("Circuit breaker for " + name + " closed");
+                state = State.CLOSED;
+            }
+            if (elapsedNanos > slowNanos) {
+                backoff();
+            } else if (saturated && limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        } else {
+            failures++;
+            consecutiveFailures++;
+            backoff();
+            if (probed || (state == State.CLOSED && breakerThreshold > 0 && consecutiveFailures >= breakerThreshold)) {
+                log.warn("Circuit breaker for " + name + " opened after " + consecutiveFailures + " failures");
+                state = State.OPEN;
+                openedAt = System.nanoTime();
+                probing = false;
+            }
+        }
+    }
+
+    /**
+     * Return permission for a query which was never sent, without
+     * recording any outcome
+     * @param probe the value returned by acquire for this query
+     */
+    public synchronized void cancel(boolean probe) {
+        inflight--;
+        if (probe) {
+            // Let another query probe instead
+            probing = false;
+        }
+    }
+
+    protected void backoff() {
+        limit = Math.max(1.0, limit * BACKOFF);
+    }
+
+    protected void reject(String reason) {
+        rejections++;
+        throw new SourceUnavailableException("Query to " + name + " refused: " + reason);
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    @Override
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inflight;
+    }
+
+    @Override
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    @Override
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    @Override
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    @Override
+    public synchronized void reset() {
+        state = State.CLOSED;
+        probing = false;
+        consecutiveFailures = 0;
+        limit = maxLimit;
+    }
+}
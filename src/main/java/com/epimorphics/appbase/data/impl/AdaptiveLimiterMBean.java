@@ -0,0 +1,36 @@
+/******************************************************************
+ * File:        AdaptiveLimiterMBean.java
+ * Created by:  Dave Reynolds
+ * Created on:  26 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+/**
+ * JMX view of the concurrency limit and circuit breaker for a remote source.
+ */
+public interface AdaptiveLimiterMBean {
+
+    /** Current limit on concurrent queries */
+    public int getLimit();
+
+    public int getMaxLimit();
+
+    /** Number of queries currently running */
+    public int getInFlight();
+
+    /** Number of queries refused because the limit was reached or the breaker was open */
+    public long getRejections();
+
+    /** Number of queries which failed */
+    public long getFailures();
+
+    /** Breaker state, one of CLOSED, OPEN, HALF_OPEN */
+    public String getState();
+
+    /** Close the breaker and restore the full limit */
+    public void reset();
+}
@@ -0,0 +1,94 @@
+/******************************************************************
+ * File:        AsyncQueries.java
+ * Created by:  Dave Reynolds
+ * Created on:  10 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.epimorphics.appbase.core.Named;
+import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.util.BoundedExecutor;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.query.ResultSet;
+
+/**
+ * The pool of threads belonging to a sparql source, and the async query
+ * calls run on it. Each call runs the source's own synchronous form of the
+ * query as a QueryTask, so cancelling the future aborts the query.
+ * The pool is created on first use and discarded by shutdown.
+ */
+public class AsyncQueries {
+    protected final SparqlSource source;
+    protected int threads = BaseSparqlSource.DEFAULT_ASYNC_THREADS;
+    protected ExecutorService executor;
+
+    public AsyncQueries(SparqlSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Set the number of threads, only has an effect before the pool is first used
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            String name = source instanceof Named ? ((Named)source).getName() : "source";
+            executor = BoundedExecutor.create("query-" + name, threads, threads * 16);
+        }
+        return executor;
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public Future<ResultSet> selectAsync(final String query) {
+        return submit(new Callable<ResultSet>() {
+            @Override
+            public ResultSet call() {
+                return source.select(query);
+            }
+        });
+    }
+
+    public Future<Graph[]> describeEachAsync(final String... uris) {
+        return submit(new Callable<Graph[]>() {
+            @Override
+            public Graph[] call() {
+                return source.describeEach(uris);
+            }
+        });
+    }
+
+    public Future<Graph> constructAsync(final String query) {
+        return submit(new Callable<Graph>() {
+            @Override
+            public Graph call() {
+                return source.construct(query);
+            }
+        });
+    }
+
+    /**
+     * Run a query in the background as a task which can be cancelled
+     */
+    public <T> Future<T> submit(Callable<T> call) {
+        QueryTask<T> task = new QueryTask<>(call);
+        getExecutor().execute(task);
+        return task;
+    }
+}
@@ -9,15 +9,31 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
 import com.epimorphics.appbase.data.ClosableResultSet;
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.util.BoundedCache;
+import com.epimorphics.util.EpiException;
 import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.mem.GraphMem;
+import com.hp.hpl.jena.query.ParameterizedSparqlString;
+import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -26,16 +42,107 @@ import com.hp.hpl.jena.sparql.util.Closure;
 
 /**
  * Generic implementation of a sparql source.
+ * <p>
+ * Async queries, and the chunks of large describeEach calls, are run on a
+ * small pool of threads belonging to the source, configured by asyncThreads (default 4).
+ * Cancelling the future returned by an async call (with interruption) aborts the query.
+ * </p>
+ * <p>
+ * A default time limit for queries can be set by queryTimeout (ms), a query which runs
+ * over is aborted and throws a QueryCancelledException. The limit for an individual
+ * select can be given in the call. Either way the query's lock, transaction or
+ * connection is released.
+ * </p>
+ * <p>
+ * Queries given to select with bindings (e.g. prepared queries) are expected to be
+ * reused. Local sources keep the parsed form of the recently used ones (queryCacheSize,
+ * default 200) and apply the bindings as initial bindings of the parsed query, so
+ * a query shape run repeatedly with different values is only parsed once. Other
+ * queries are parsed afresh each time, so that one-off queries don't displace them. 
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
-public abstract class BaseSparqlSource extends ComponentBase implements SparqlSource {
+public abstract class BaseSparqlSource extends ComponentBase implements SparqlSource, Shutdown {
+    public static final int DEFAULT_ASYNC_THREADS = 4;
+    public static final int DEFAULT_DESCRIBE_CHUNK = 50;
+    public static final int DEFAULT_MAX_QUERY_LENGTH = 8000;
+    public static final int DEFAULT_QUERY_CACHE = 200;
+    
+    protected final AtomicLong generation = new AtomicLong();
+    protected final AsyncQueries async = new AsyncQueries(this);
+    protected int describeChunkSize = DEFAULT_DESCRIBE_CHUNK;
+    protected int maxQueryLength = DEFAULT_MAX_QUERY_LENGTH;
+    protected long queryTimeout = 0;
+    protected BoundedCache<String, Query> parsedQueries = new BoundedCache<>(DEFAULT_QUERY_CACHE);
+    
+    /**
+     * Set the default time limit (ms) for queries, 0 for no limit
+     */
+    public void setQueryTimeout(long timeout) {
+        queryTimeout = timeout;
+    }
+    
+    /**
+     * Set the maximum number of async queries which will be run concurrently
+     */
+    public void setAsyncThreads(long threads) {
+        async.setThreads((int)threads);
+    }
+    
+    /**
+     * Set the maximum number of resources described in a single query, default 50
+     */
+    public void setDescribeChunkSize(long size) {
+        describeChunkSize = Math.max(1, (int)size);
+    }
+    
+    /**
+     * Set an approximate limit on the length (in characters) of a generated describe query,
+     * default 8000. 
+     */
+    public void setMaxQueryLength(long length) {
+        maxQueryLength = (int)length;
+    }
+    
+    /**
+     * Set the number of parsed queries retained for reuse, 0 to disable
+     */
+    public void setQueryCacheSize(long size) {
+        parsedQueries = size > 0 ? new BoundedCache<String, Query>((int)size) : null;
+    }
+    
+    protected ExecutorService getExecutor() {
+        return async.getExecutor();
+    }
+    
+    @Override
+    public void shutdown() {
+        async.shutdown();
+    }
 
     @Override
     public ResultSet select(String queryString) {
-        QueryExecution qexec = start(queryString);
+        return select(queryString, 0);
+    }
+
+    @Override
+    public ResultSet select(String queryString, long timeout) {
+        return select(start(queryString), timeout);
+    }
+
+    @Override
+    public ResultSet select(String queryString, QuerySolution bindings, long timeout) {
+        return select(startWithBindings(queryString, bindings), timeout);
+    }
+
+    protected ResultSet select(QueryExecution qexec, long timeout) {
         try {
+            prepare(qexec, timeout);
             return ResultSetFactory.makeRewindable( qexec.execSelect() );
+        } catch (RuntimeException e) {
+            failed(qexec, e);
+            throw e;
         } finally { 
             finish(qexec);
         }
@@ -62,18 +169,95 @@ public abstract class BaseSparqlSource extends ComponentBase implements SparqlSo
     public Graph describe(String query) {
         QueryExecution qexec = start(query);
         try {
+            prepare(qexec, 0);
             Graph graph = new GraphMem();
             for (Iterator<Triple> i = qexec.execDescribeTriples(); i.hasNext();) {
                 graph.add(i.next());
             }
             return graph;
+        } catch (RuntimeException e) {
+            failed(qexec, e);
+            throw e;
         } finally { 
             finish(qexec);
         }
     }
     
+    /**
+     * Fetch a description of a set of resources. Large sets are split into
+     * chunks (see setDescribeChunkSize, setMaxQueryLength) which are described
+     * concurrently on the source's query threads.
+     */
     @Override
     public Graph[] describeEach(String... uris) {
+        List<String[]> chunks = chunk(uris);
+        if (chunks.size() <= 1) {
+            return describeChunk(uris);
+        }
+        List<QueryTask<Graph[]>> tasks = new ArrayList<>( chunks.size() );
+        ExecutorService pool = getExecutor();
+        for (final String[] chunk : chunks) {
+            QueryTask<Graph[]> task = new QueryTask<>(new Callable<Graph[]>() {
+                @Override
+                public Graph[] call() {
+                    return describeChunk(chunk);
+                }
+            });
+            // Cancelling an enclosing task (e.g. from describeEachAsync) cancels the chunks
+            QueryTask.forked(task);
+            tasks.add(task);
+            pool.execute(task);
+        }
+        // Run any chunks the pool hasn't got to yet ourselves, so that
+        // calls made from the pool threads themselves can't deadlock
+        for (QueryTask<Graph[]> task : tasks) {
+            task.run();
+        }
+        Graph[] graphs = new Graph[ uris.length ];
+        int offset = 0;
+        try {
+            for (QueryTask<Graph[]> task : tasks) {
+                Graph[] chunkGraphs = task.get();
+                System.arraycopy(chunkGraphs, 0, graphs, offset, chunkGraphs.length);
+                offset += chunkGraphs.length;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EpiException("Interrupted while describing resources");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new EpiException(cause);
+        }
+        return graphs;
+    }
+    
+    /**
+     * Split a set of resources to be described into batches
+     * limited in both number and total query length.
+     */
+    protected List<String[]> chunk(String[] uris) {
+        List<String[]> chunks = new ArrayList<>();
+        int start = 0;
+        int length = 0;
+        for (int i = 0; i < uris.length; i++) {
+            int len = uris[i].length() + 3;
+            if (i > start && (i - start >= describeChunkSize || length + len > maxQueryLength)) {
+                chunks.add( Arrays.copyOfRange(uris, start, i) );
+                start = i;
+                length = 0;
+            }
+            length += len;
+        }
+        if (start < uris.length) {
+            chunks.add( Arrays.copyOfRange(uris, start, uris.length) );
+        }
+        return chunks;
+    }
+    
+    protected Graph[] describeChunk(String... uris) {
         Model all = ModelFactory.createModelForGraph( describeAll(uris) );
         Graph[] graphs = new Graph[ uris.length ];
         for (int i = 0; i < uris.length; i++) {
@@ -87,17 +271,114 @@ public abstract class BaseSparqlSource extends ComponentBase implements SparqlSo
     public Graph construct(String queryString) {
         QueryExecution qexec = start(queryString);
         try {
+            prepare(qexec, 0);
             Graph graph = new GraphMem();
             for (Iterator<Triple> i = qexec.execConstructTriples(); i.hasNext();) {
                 graph.add(i.next());
             }
             return graph;
+        } catch (RuntimeException e) {
+            failed(qexec, e);
+            throw e;
         } finally {
             finish(qexec);
         }
     }
 
+    @Override
+    public Future<ResultSet> selectAsync(String query) {
+        return async.selectAsync(query);
+    }
+
+    @Override
+    public Future<Graph[]> describeEachAsync(String... uris) {
+        return async.describeEachAsync(uris);
+    }
+
+    @Override
+    public Future<Graph> constructAsync(String query) {
+        return async.constructAsync(query);
+    }
+
+
+    @Override
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    @Override
+    public void incrementGeneration() {
+        generation.incrementAndGet();
+    }
+
     abstract protected QueryExecution start(String queryString);
     
+    /**
+     * Start a query, which is likely to be reused, with some variables bound.
+     * The default substitutes the bindings into the query text, local sources
+     * override this to bind them in the (cached) parsed query instead.
+     * @param bindings values for query variables, may be null
+     */
+    protected QueryExecution startWithBindings(String queryString, QuerySolution bindings) {
+        if (bindings == null) {
+            return start(queryString);
+        }
+        return start( substitute(queryString, bindings) );
+    }
+    
+    /**
+     * Substitute variable bindings into the text of a query
+     */
+    protected static String substitute(String queryString, QuerySolution bindings) {
+        ParameterizedSparqlString pss = new ParameterizedSparqlString(queryString);
+        for (Iterator<String> i = bindings.varNames(); i.hasNext();) {
+            String var = i.next();
+            pss.setParam(var, bindings.get(var));
+        }
+        return pss.toString();
+    }
+    
+    /**
+     * Parse a query, reusing the result of an earlier parse of the same
+     * text if there is one. The returned query is shared so must not be modified.
+     */
+    protected Query parse(String queryString) {
+        BoundedCache<String, Query> cache = parsedQueries;
+        if (cache == null) {
+            return QueryFactory.create(queryString);
+        }
+        Query query = cache.get(queryString);
+        if (query == null) {
+            query = QueryFactory.create(queryString);
+            // Fix the result variables now, rather than lazily during some later (concurrent) execution
+            query.setResultVars();
+            cache.put(queryString, query);
+        }
+        return query;
+    }
+    
+    /**
+     * Release all resources associated with a query execution.
+     * Called once for each call to start, whether or not the query succeeded.
+     */
     abstract protected void finish(QueryExecution qexec);
+    
+    /**
+     * Apply the time limit to a started query execution and allow
+     * it to be aborted if it is running as part of a cancelled async task.
+     * @param timeout time limit in milliseconds, 0 for the source's default
+     */
+    protected void prepare(QueryExecution qexec, long timeout) {
+        long limit = timeout > 0 ? timeout : queryTimeout;
+        if (limit > 0) {
+            qexec.setTimeout(limit, TimeUnit.MILLISECONDS);
+        }
+        QueryTask.started(qexec);
+    }
+    
+    /**
+     * Called when a query fails, before finish is called. Default does nothing.
+     */
+    protected void failed(QueryExecution qexec, RuntimeException e) {
+    }
 }
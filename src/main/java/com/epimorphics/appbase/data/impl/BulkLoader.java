@@ -0,0 +1,224 @@
+/******************************************************************
+ * File:        BulkLoader.java
+ * Created by:  Dave Reynolds
+ * Created on:  5 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.DatasetAccessor;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.modify.request.Target;
+import com.hp.hpl.jena.sparql.modify.request.UpdateDrop;
+import com.hp.hpl.jena.sparql.modify.request.UpdateMove;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * Loads an RDF file into a named graph of a SparqlSource by streaming
+ * the parser output into the store in fixed size chunks, so the whole file
+ * is never held in memory.
+ * <p>
+ * If the source is updateable the chunks go into a staging graph which, once
+ * the whole file has been read, replaces the target graph in a single update.
+ * So queries see either the old or the new graph and a load which fails, e.g. on a
+ * syntax error part way through the file, leaves the old graph in place. With a
+ * union default graph the staging graph is visible during the load, so the union
+ * will include some of the new triples before the old ones are removed. If the source
+ * is not updateable the target graph is cleared first and each chunk committed
+ * separately, so queries may see a partially loaded graph.
+ * </p>
+ * <p>
+ * For a TDBSparqlSource the chunks are written directly into the dataset,
+ * otherwise they are added through the source's DatasetAccessor. Chunks added
+ * to a remote store are serialized separately so blank nodes which span
+ * chunks will not be preserved.
+ * </p>
+ * <p>
+ * Progress is logged every progressInterval triples, and the triple count
+ * and load rate are available during and after the load. A failed load is
+ * logged and rethrown, the failure is also available from getFailure.
+ * </p>
+ */
+public class BulkLoader extends StreamRDFBase {
+    static Logger log = LoggerFactory.getLogger( BulkLoader.class );
+
+    public static final int DEFAULT_CHUNK_SIZE = 50000;
+    public static final long DEFAULT_PROGRESS_INTERVAL = 1000000;
+    
+    /** Prefix of the graph URI into which a graph is loaded before replacing the real one */
+    public static final String STAGING_PREFIX = "urn:x-appbase:bulkload:";
+
+    protected SparqlSource source;
+    protected int chunkSize = DEFAULT_CHUNK_SIZE;
+    protected long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    protected String graphURI;
+    protected String loadGraph;
+    protected volatile RuntimeException failure;
+    protected List<Triple> chunk;
+    protected volatile long count;
+    protected long nextReport;
+    protected volatile long startTime;
+    protected volatile long endTime;
+
+    public BulkLoader(SparqlSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Number of triples to commit at a time
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Number of triples between progress log messages
+     */
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Replace the contents of the given graph with the contents of the file.
+     * A loader can be reused but only for one load at a time.
+     * @return the number of triples loaded
+     */
+    public synchronized long load(String graphURI, String filename) {
+        boolean staged = source.isUpdateable();
+        this.graphURI = graphURI;
+        loadGraph = staged ? STAGING_PREFIX + graphURI : graphURI;
+        chunk = new ArrayList<>(chunkSize);
+        count = 0;
+        nextReport = progressInterval;
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        failure = null;
+        try {
+            if (staged) {
+                // Clear out anything left by an earlier load which didn't finish
+                if (getAccessor().containsModel(loadGraph)) {
+                    dropStaging();
+                }
+            } else {
+                getAccessor().deleteModel(graphURI);
+            }
+            RDFDataMgr.parse(this, filename);
+            if (staged) {
+                // MOVE leaves the target alone if the file was empty and there is no staging graph.
+                // Built from nodes since a graph name such as "file:x" would be resolved if parsed.
+                UpdateRequest swap = new UpdateRequest();
+                swap.add( new UpdateDrop(NodeFactory.createURI(graphURI), true) );
+                swap.add( new UpdateMove(Target.create(loadGraph), Target.create(graphURI), true) );
+                source.update(swap);
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            log.error( String.format("Failed to load %s into %s after %,d triples%s", filename, graphURI, count,
+                    staged ? ", graph left unchanged" : ", graph is incomplete"), e );
+            if (staged) {
+                dropStaging();
+            }
+            throw e;
+        } finally {
+            endTime = System.currentTimeMillis();
+            chunk = null;
+        }
+        log.info( String.format("Loaded %,d triples from %s into %s (%,d triples/s)", count, filename, graphURI, getTriplesPerSecond()) );
+        return count;
+    }
+    
+    protected void dropStaging() {
+        try {
+            source.update( new UpdateRequest( new UpdateDrop(NodeFactory.createURI(loadGraph), true) ) );
+        } catch (RuntimeException e) {
+            log.warn("Failed to remove staging graph " + loadGraph, e);
+        }
+    }
+    
+    /**
+     * The error which stopped the last load, or null if it succeeded (or is still running)
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Number of triples loaded so far by the current or last load
+     */
+    public long getTripleCount() {
+        return count;
+    }
+
+    /**
+     * Average load rate of the current or last load
+     */
+    public long getTriplesPerSecond() {
+        long end = endTime == 0 ? System.currentTimeMillis() : endTime;
+        long elapsed = end - startTime;
+        return elapsed <= 0 ? count : count * 1000 / elapsed;
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        chunk.add(triple);
+        if (chunk.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        // Quads files are loaded into the single target graph
+        triple( quad.asTriple() );
+    }
+
+    @Override
+    public void finish() {
+        flush();
+    }
+
+    protected void flush() {
+        if (chunk.isEmpty()) return;
+        if (source instanceof TDBSparqlSource) {
+            ((TDBSparqlSource)source).addTriples(loadGraph, chunk);
+        } else {
+            Model model = ModelFactory.createDefaultModel();
+            for (Triple t : chunk) {
+                model.getGraph().add(t);
+            }
+            getAccessor().add(loadGraph, model);
+        }
+        count += chunk.size();
+        chunk.clear();
+        if (count >= nextReport) {
+            log.info( String.format("Loading %s: %,d triples (%,d triples/s)", graphURI, count, getTriplesPerSecond()) );
+            nextReport += progressInterval;
+        }
+    }
+
+    protected DatasetAccessor getAccessor() {
+        DatasetAccessor accessor = source.getAccessor();
+        if (accessor == null) {
+            throw new EpiException("Can't get data accessor for sparql source: " + source);
+        }
+        return accessor;
+    }
+}
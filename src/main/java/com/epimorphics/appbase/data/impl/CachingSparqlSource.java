@@ -0,0 +1,440 @@
+/******************************************************************
+ * File:        CachingSparqlSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  22 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.core.Shutdown;
+import com.epimorphics.appbase.data.ClosableResultSet;
+import com.epimorphics.appbase.data.RequestScopedSource;
+import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.util.BoundedCache;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.query.DatasetAccessor;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.resultset.ResultSetMem;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * A SparqlSource which caches the results of select, construct and
+ * describe queries made on some other source. Configure by wrapping an
+ * existing source component:
+ * <pre>
+ *   cached = com.epimorphics.appbase.data.impl.CachingSparqlSource
+ *   cached.source = $ssource
+ *   cached.cacheSize = 500
+ *   cached.cacheMaxSize = 1000000
+ *   cached.cacheTTL = 600000
+ * </pre>
+ * <ul>
+ *   <li>cacheSize - maximum number of queries whose results are retained, default 500</li>
+ *   <li>cacheMaxSize - bound on the total size of the cached results, measured in
+ *   result cells (rows times variables) or triples, default is unbounded</li>
+ *   <li>cacheTTL - time (ms) for which results are reused, default is no limit</li>
+ *   <li>asyncThreads - maximum number of async queries run concurrently, default 4</li>
+ * </ul>
+ * <p>
+ * Queries are matched on their text with whitespace outside of literals
+ * normalized. Cached results are discarded once the data changes through the
+ * wrapped source (updates, accessor writes, reloads). Streamed selects are
+ * passed straight through. Graphs returned from the cache are shared and immutable.
+ * </p>
+ *
+ * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
+ */
+public class CachingSparqlSource extends ComponentBase implements SparqlSource, RequestScopedSource, Shutdown {
+    public static final int DEFAULT_CACHESIZE = 500;
+
+    protected SparqlSource source;
+    protected int cacheSize = DEFAULT_CACHESIZE;
+    protected long cacheMaxSize = Long.MAX_VALUE;
+    protected long cacheTTL = 0;
+    protected BoundedCache<String, CachedResult> cache;
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AsyncQueries async = new AsyncQueries(this);
+
+    public CachingSparqlSource() {
+        resetCache();
+    }
+
+    public void setSource(SparqlSource source) {
+        this.source = source;
+    }
+
+    public SparqlSource getSource() {
+        return source;
+    }
+
+    public void setCacheSize(long size) {
+        cacheSize = (int)size;
+        resetCache();
+    }
+
+    public void setCacheMaxSize(long size) {
+        cacheMaxSize = size;
+        resetCache();
+    }
+
+    public void setCacheTTL(long ttl) {
+        cacheTTL = ttl;
+        resetCache();
+    }
+
+    public void setAsyncThreads(long threads) {
+        async.setThreads((int)threads);
+    }
+
+    protected void resetCache() {
+        cache = new BoundedCache<>(cacheSize, cacheMaxSize, new ResultWeigher());
+        cache.setTimeToLive(cacheTTL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void startup(App app) {
+        super.startup(app);
+        require(source, "source");
+    }
+
+    @Override
+    public void shutdown() {
+        async.shutdown();
+    }
+
+    /**
+     * Discard all cached results
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int getCacheCount() {
+        return cache.size();
+    }
+
+    @Override
+    public ResultSet select(String query) {
+        return select(query, 0);
+    }
+
+    @Override
+    public ResultSet select(String query, long timeout) {
+        return select(query, null, false, timeout);
+    }
+
+    @Override
+    public ResultSet select(String query, QuerySolution bindings, long timeout) {
+        return select(query, bindings, true, timeout);
+    }
+
+    // Passes the query on the same way it was given, so the wrapped source knows whether it is likely to be reused
+    protected ResultSet select(String query, QuerySolution bindings, boolean reused, long timeout) {
+        String key = "S " + normalize(query);
+        if (bindings != null) {
+            key += " " + bindingKey(bindings);
+        }
+        ResultSetMem results = (ResultSetMem) lookup(key);
+        if (results == null) {
+            long generation = source.getGeneration();
+            results = new ResultSetMem( reused ? source.select(query, bindings, timeout) : source.select(query, timeout) );
+            store(key, results, generation);
+        }
+        // Shares the cached rows but has its own cursor
+        return new ResultSetMem(results);
+    }
+
+    @Override
+    public ClosableResultSet streamableSelect(String query) {
+        return source.streamableSelect(query);
+    }
+
+    @Override
+    public Graph describe(String query) {
+        String key = "D " + normalize(query);
+        Graph graph = (Graph) lookup(key);
+        if (graph == null) {
+            long generation = source.getGeneration();
+            graph = CompactGraph.copyOf( source.describe(query) );
+            store(key, graph, generation);
+        }
+        return graph;
+    }
+
+    @Override
+    public Graph describeAll(String... uris) {
+        if (uris.length == 0) return null;
+        String key = "A " + join(uris);
+        Graph graph = (Graph) lookup(key);
+        if (graph == null) {
+            long generation = source.getGeneration();
+            graph = CompactGraph.copyOf( source.describeAll(uris) );
+            store(key, graph, generation);
+        }
+        return graph;
+    }
+
+    @Override
+    public Graph[] describeEach(String... uris) {
+        String key = "E " + join(uris);
+        Graph[] graphs = (Graph[]) lookup(key);
+        if (graphs == null) {
+            long generation = source.getGeneration();
+            graphs = source.describeEach(uris);
+            for (int i = 0; i < graphs.length; i++) {
+                if (graphs[i] != null) {
+                    graphs[i] = CompactGraph.copyOf(graphs[i]);
+                }
+            }
+            store(key, graphs, generation);
+        }
+        return graphs.clone();
+    }
+
+    @Override
+    public Graph construct(String query) {
+        String key = "C " + normalize(query);
+        Graph graph = (Graph) lookup(key);
+        if (graph == null) {
+            long generation = source.getGeneration();
+            graph = CompactGraph.copyOf( source.construct(query) );
+            store(key, graph, generation);
+        }
+        return graph;
+    }
+
+    @Override
+    public Future<ResultSet> selectAsync(String query) {
+        return async.selectAsync(query);
+    }
+
+    @Override
+    public Future<Graph[]> describeEachAsync(String... uris) {
+        return async.describeEachAsync(uris);
+    }
+
+    @Override
+    public Future<Graph> constructAsync(String query) {
+        return async.constructAsync(query);
+    }
+
+
+    @Override
+    public void update(UpdateRequest update) {
+        source.update(update);
+    }
+
+    @Override
+    public boolean isUpdateable() {
+        return source.isUpdateable();
+    }
+
+    /**
+     * Returns the wrapped source's accessor, writes through that
+     * change the source generation and so invalidate this cache.
+     */
+    @Override
+    public DatasetAccessor getAccessor() {
+        return source.getAccessor();
+    }
+
+    @Override
+    public void beginRequest() {
+        if (source instanceof RequestScopedSource) {
+            ((RequestScopedSource)source).beginRequest();
+        }
+    }
+
+    @Override
+    public void endRequest() {
+        if (source instanceof RequestScopedSource) {
+            ((RequestScopedSource)source).endRequest();
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return source.getGeneration();
+    }
+
+    @Override
+    public void incrementGeneration() {
+        source.incrementGeneration();
+    }
+
+    protected Object lookup(String key) {
+        CachedResult entry = cache.get(key);
+        if (entry != null && entry.generation == source.getGeneration()) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    protected void store(String key, Object value, long generation) {
+        cache.put(key, new CachedResult(value, generation));
+    }
+
+    protected static String bindingKey(QuerySolution bindings) {
+        List<String> vars = new ArrayList<>();
+        for (Iterator<String> i = bindings.varNames(); i.hasNext();) {
+            vars.add( i.next() );
+        }
+        Collections.sort(vars);
+        StringBuilder key = new StringBuilder();
+        for (String var : vars) {
+            key.append('?').append(var).append('=').append( FmtUtils.stringForRDFNode(bindings.get(var)) ).append(' ');
+        }
+        return key.toString();
+    }
+
+    protected static String join(String... uris) {
+        StringBuilder key = new StringBuilder();
+        for (String uri : uris) {
+            key.append(uri).append(' ');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Collapse runs of whitespace outside of quoted strings and IRIs, drop
+     * comments, and drop whitespace next to brackets and braces, so trivially
+     * different layouts of the same query share an entry. A comment runs to
+     * the end of its line, so it is treated as a separator rather than
+     * letting the text after the line break join it.
+     */
+    protected static String normalize(String query) {
+        int len = query.length();
+        StringBuilder norm = new StringBuilder( len );
+        boolean space = false;
+        int i = 0;
+        while (i < len) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (c == '#') {
+                while (i < len && query.charAt(i) != '\n' && query.charAt(i) != '\r') {
+                    i++;
+                }
+                space = true;
+                continue;
+            }
+            if (space && norm.length() > 0 && !isBracket(c) && !isBracket(norm.charAt(norm.length() - 1))) {
+                norm.append(' ');
+            }
+            space = false;
+            int end;
+            if (c == '"' || c == '\'') {
+                end = endOfString(query, i);
+            } else if (c == '<') {
+                end = endOfIRI(query, i);
+            } else if (c == '\\') {
+                // Escaped character in a prefixed name, e.g. ex:a\#b
+                end = Math.min(len, i + 2);
+            } else {
+                end = i + 1;
+            }
+            norm.append(query, i, end);
+            i = end;
+        }
+        return norm.toString();
+    }
+
+    // Index just after the string literal starting at i, which may be a long (triple quoted) string
+    private static int endOfString(String query, int i) {
+        int len = query.length();
+        char quote = query.charAt(i);
+        boolean isLong = query.startsWith(new String(new char[]{quote, quote, quote}), i);
+        int j = i + (isLong ? 3 : 1);
+        while (j < len) {
+            char c = query.charAt(j);
+            if (c == '\\') {
+                j += 2;
+            } else if (c == quote && (!isLong || query.startsWith(new String(new char[]{quote, quote, quote}), j))) {
+                return j + (isLong ? 3 : 1);
+            } else {
+                j++;
+            }
+        }
+        return len;
+    }
+
+    // Index just after the IRI starting at i, or i + 1 if the '<' is a less than operator
+    private static int endOfIRI(String query, int i) {
+        for (int j = i + 1; j < query.length(); j++) {
+            char c = query.charAt(j);
+            if (c == '>') {
+                return j + 1;
+            }
+            if (Character.isWhitespace(c) || "<\"{}|^`\\".indexOf(c) >= 0) {
+                break;
+            }
+        }
+        return i + 1;
+    }
+
+    private static boolean isBracket(char c) {
+        return c == '{' || c == '}' || c == '(' || c == ')';
+    }
+
+    protected static class CachedResult {
+        protected final Object value;
+        protected final long generation;
+
+        public CachedResult(Object value, long generation) {
+            this.value = value;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Weighs cached results by the number of result cells or triples
+     */
+    public static class ResultWeigher implements BoundedCache.Weigher<CachedResult> {
+        @Override
+        public long weigh(CachedResult result) {
+            Object value = result.value;
+            if (value instanceof ResultSetMem) {
+                ResultSetMem rs = (ResultSetMem) value;
+                return (long) rs.size() * Math.max(1, rs.getResultVars().size()) + 1;
+            } else if (value instanceof Graph) {
+                return ((Graph) value).size() + 1;
+            } else if (value instanceof Graph[]) {
+                long weight = 1;
+                for (Graph g : (Graph[]) value) {
+                    weight += g == null ? 0 : g.size();
+                }
+                return weight;
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/******************************************************************
+ * File:        CompactGraph.java
+ * Created by:  Dave Reynolds
+ * Created on:  12 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+
+/**
+ * An immutable graph held as a single array of triples sorted by subject
+ * and then predicate. Intended for caching small resource descriptions,
+ * it takes a fraction of the space of a GraphMem, which maintains three
+ * hash indexes per graph. Lookups by subject (and predicate) use binary
+ * search, any other pattern is a linear scan, which is fine at description sizes.
+ * <p>
+ * Any attempt to modify the graph will throw an exception.
+ * </p>
+ */
+public class CompactGraph extends GraphBase {
+    protected final Triple[] triples;
+
+    protected static final Comparator<Triple> ORDER = new Comparator<Triple>() {
+        @Override
+        public int compare(Triple a, Triple b) {
+            int c = compareHash(a.getSubject(), b.getSubject());
+            return c != 0 ? c : compareHash(a.getPredicate(), b.getPredicate());
+        }
+    };
+
+    protected CompactGraph(Triple[] triples) {
+        this.triples = triples;
+        Arrays.sort(this.triples, ORDER);
+    }
+
+    /**
+     * Create a compact copy of the given graph
+     */
+    public static CompactGraph copyOf(Graph graph) {
+        if (graph instanceof CompactGraph) {
+            return (CompactGraph)graph;
+        }
+        List<Triple> all = graph.find(Node.ANY, Node.ANY, Node.ANY).toList();
+        return new CompactGraph( all.toArray(new Triple[all.size()]) );
+    }
+
+    protected static int compareHash(Node a, Node b) {
+        return Integer.compare(a.hashCode(), b.hashCode());
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+        Node s = m.getMatchSubject();
+        Node p = m.getMatchPredicate();
+        Node o = m.getMatchObject();
+        int start = 0;
+        int end = triples.length;
+        if (s != null) {
+            start = lowerBound(s, p);
+            end = start;
+            while (end < triples.length && samePrefix(triples[end], s, p)) {
+                end++;
+            }
+        }
+        List<Triple> matches = null;
+        for (int i = start; i < end; i++) {
+            Triple t = triples[i];
+            if (matches(s, t.getSubject()) && matches(p, t.getPredicate()) && matches(o, t.getObject())) {
+                if (matches == null) {
+                    matches = new ArrayList<>();
+                }
+                matches.add(t);
+            }
+        }
+        if (matches == null) {
+            return NullIterator.instance();
+        }
+        return WrappedIterator.create( matches.iterator() );
+    }
+
+    // Index of the first triple whose subject (and predicate, if given) hash is not less than the target
+    private int lowerBound(Node s, Node p) {
+        int sh = s.hashCode();
+        int ph = p == null ? Integer.MIN_VALUE : p.hashCode();
+        int lo = 0;
+        int hi = triples.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Triple t = triples[mid];
+            int c = Integer.compare(t.getSubject().hashCode(), sh);
+            if (c == 0) {
+                c = Integer.compare(t.getPredicate().hashCode(), ph);
+            }
+            if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private boolean samePrefix(Triple t, Node s, Node p) {
+        return t.getSubject().hashCode() == s.hashCode()
+                && (p == null || t.getPredicate().hashCode() == p.hashCode());
+    }
+
+    private boolean matches(Node pattern, Node n) {
+        if (pattern == null || pattern.equals(Node.ANY)) {
+            return true;
+        }
+        if (pattern.isLiteral()) {
+            return pattern.sameValueAs(n);
+        }
+        return pattern.equals(n);
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        return triples.length;
+    }
+
+}
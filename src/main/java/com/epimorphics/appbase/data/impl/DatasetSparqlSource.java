@@ -24,15 +24,18 @@ import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.NodeFactory;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.DatasetAccessor;
-import com.hp.hpl.jena.query.DatasetAccessorFactory;
 import com.hp.hpl.jena.query.DatasetFactory;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ReadWrite;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.Lock;
 import com.hp.hpl.jena.sparql.util.Closure;
+import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
 import com.hp.hpl.jena.update.UpdateExecutionFactory;
@@ -42,6 +45,14 @@ import com.hp.hpl.jena.vocabulary.RDFS;
 /**
  * An in-memory source which supports graph access.
  * No built in initialization - subclass or initialize using a suitably ConfigMonitor.
+ * <p>
+ * By default the data is held in a plain memory dataset guarded by a single
+ * multiple-reader/single-writer lock, so an update waits for all running queries
+ * and blocks new ones until it completes. Setting transactional to true holds the
+ * data in an in-memory TDB dataset instead. Each query then runs in a read
+ * transaction which sees a consistent snapshot of the data, queries never wait
+ * for updates and updates only wait for each other.
+ * </p>
  * @see FileSparqlSource
  */
 public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSource, Startup {
@@ -51,6 +62,22 @@ public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSourc
     protected GraphStore graphStore;
     protected DatasetAccessor accessor;
     protected String indexSpec = null;
+    protected boolean transactional = false;
+    protected final ThreadLocal<int[]> readDepth = new ThreadLocal<>();  // open reads on a thread, transactional only
+    
+    /**
+     * Set to true to hold the data in a transactional (in-memory TDB) dataset
+     * so that queries see a snapshot and are not blocked by updates.
+     * Must be set before any data is loaded.
+     */
+    public void setTransactional(boolean transactional) {
+        this.transactional = transactional;
+        dataset = transactional ? TDBFactory.createDataset() : DatasetFactory.createMem();
+    }
+    
+    public boolean isTransactional() {
+        return transactional;
+    }
     
     /**
      * Configuration call to enable text indexing of the loaded data.
@@ -93,48 +120,134 @@ public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSourc
         
     }
 
+    /**
+     * Start reading from the dataset, taking the read lock or starting
+     * a read transaction. Must be followed by a call to endRead.
+     * A read made while another read on the same thread is still open
+     * (e.g. a streamed select) joins the transaction of the outer one.
+     */
+    protected void beginRead() {
+        if (transactional) {
+            int[] depth = readDepth.get();
+            if (depth == null) {
+                depth = new int[1];
+                readDepth.set(depth);
+            }
+            if (depth[0] == 0) {
+                dataset.begin(ReadWrite.READ);
+            }
+            depth[0]++;
+        } else {
+            dataset.getLock().enterCriticalSection(Lock.READ);
+        }
+    }
+    
+    protected void endRead() {
+        if (transactional) {
+            int[] depth = readDepth.get();
+            if (depth == null) return;
+            depth[0]--;
+            if (depth[0] <= 0) {
+                readDepth.remove();
+                dataset.end();
+            }
+        } else {
+            dataset.getLock().leaveCriticalSection();
+        }
+    }
+    
+    /**
+     * Start modifying the dataset, taking the write lock or starting
+     * a write transaction. Must be followed by a call to endWrite.
+     */
+    protected void beginWrite() {
+        if (transactional) {
+            dataset.begin(ReadWrite.WRITE);
+        } else {
+            dataset.getLock().enterCriticalSection(Lock.WRITE);
+        }
+    }
+    
+    /**
+     * Finish modifying the dataset, committing the changes if commit is true and
+     * the dataset is transactional (a locked dataset can't roll back).
+     */
+    protected void endWrite(boolean commit) {
+        if (transactional) {
+            if (commit) {
+                dataset.commit();
+            }
+            dataset.end();
+        } else {
+            dataset.getLock().leaveCriticalSection();
+        }
+    }
+
     @Override
     public Graph describeAll(String... uris) {
-        dataset.getLock().enterCriticalSection(true);
         Model description = ModelFactory.createDefaultModel();
-        for (String uri: uris) {
-            Closure.closure( dataset.getDefaultModel().createResource(uri), false, description);
+        beginRead();
+        try {
+            for (String uri: uris) {
+                Closure.closure( dataset.getDefaultModel().createResource(uri), false, description);
+            }
+        } finally {
+            endRead();
         }
-        dataset.getLock().leaveCriticalSection();
         return description.getGraph();
     }
 
     @Override
     public Graph[] describeEach(String... resources) {
-        dataset.getLock().enterCriticalSection(true);
         Graph[] graphs = new Graph[resources.length];
-        for (int i = 0; i < resources.length; i++) {
-            String uri = resources[i];
-            graphs[i] = Closure.closure( dataset.getDefaultModel().createResource(uri), false).getGraph();
+        beginRead();
+        try {
+            for (int i = 0; i < resources.length; i++) {
+                String uri = resources[i];
+                graphs[i] = Closure.closure( dataset.getDefaultModel().createResource(uri), false).getGraph();
+            }
+        } finally {
+            endRead();
         }
-        dataset.getLock().leaveCriticalSection();
         return graphs;
     }
     
     @Override
     protected QueryExecution start(String queryString) {
-        Query query = QueryFactory.create(queryString) ;
-        QueryExecution qexec = QueryExecutionFactory.create(query, dataset) ;
-        dataset.getLock().enterCriticalSection(true);
+        return start(QueryFactory.create(queryString), null);
+    }
+    
+    @Override
+    protected QueryExecution startWithBindings(String queryString, QuerySolution bindings) {
+        return start(parse(queryString), bindings);
+    }
+    
+    protected QueryExecution start(Query query, QuerySolution bindings) {
+        QueryExecution qexec = QueryExecutionFactory.create(query, dataset, bindings) ;
+        beginRead();
         return qexec;
     }
     
     @Override
     protected void finish(QueryExecution qexec) {
-        qexec.close() ;
-        dataset.getLock().leaveCriticalSection();
+        try {
+            qexec.close() ;
+        } finally {
+            endRead();
+        }
     }
 
     @Override
     public void update(UpdateRequest update) {
-        dataset.getLock().enterCriticalSection(true);
-        UpdateExecutionFactory.create(update, getGraphStore()).execute();
-        dataset.getLock().leaveCriticalSection();
+        boolean ok = false;
+        beginWrite();
+        try {
+            UpdateExecutionFactory.create(update, getGraphStore()).execute();
+            ok = true;
+        } finally {
+            endWrite(ok);
+            incrementGeneration();
+        }
     }
 
     @Override
@@ -145,7 +258,8 @@ public class DatasetSparqlSource extends BaseSparqlSource implements SparqlSourc
     @Override
     public DatasetAccessor getAccessor() {
         if (accessor == null) {
-            accessor = DatasetAccessorFactory.create(dataset);
+            DatasetAccessor base = transactional ? new TransactionalDatasetAccessor(dataset) : new LockingDatasetAccessor(dataset);
+            accessor = new GenerationTrackingAccessor( base, this );
         }
         return accessor;
     }
@@ -0,0 +1,420 @@
+/******************************************************************
+ * File:        DescriptionStore.java
+ * Created by:  Dave Reynolds
+ * Created on:  14 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.data.NodeDescription;
+import com.epimorphics.appbase.data.NodeDescription.Coverage;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.mem.GraphMem;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Persistent second level store for node descriptions, used by WSource
+ * so that its cache survives restarts. Backed by a local TDB store in which each
+ * description is a named graph (named by the described node) with a record
+ * of the coverage and time of storage held in the default graph.
+ * <p>
+ * Writes are queued and applied in batches by a background thread so that
+ * storing a description never delays a render. Each description is stored with
+ * the time it was fetched from the source, not the time it was written, so one
+ * fetched before a change to the source is not taken as newer than the change.
+ * If a ttl is set, expired descriptions are removed when the store is opened
+ * and then periodically by the writer.
+ * </p>
+ * <p>
+ * A source's generation count restarts with the process so it can't tell us
+ * whether the data changed while the app was down. Instead the store records an
+ * epoch, an identifier for the version of the source data supplied by the app,
+ * and discards everything when opened with a different one. Without an epoch,
+ * descriptions left by an earlier run are only kept if a ttl bounds their age.
+ * </p>
+ */
+public class DescriptionStore {
+    static Logger log = LoggerFactory.getLogger(DescriptionStore.class);
+
+    public static final String NS = "http://www.epimorphics.com/vocabs/appbase/cache#";
+    public static final Node COVERAGE = NodeFactory.createURI(NS + "coverage");
+    public static final Node STORED   = NodeFactory.createURI(NS + "stored");
+    public static final Node EPOCH    = NodeFactory.createURI(NS + "epoch");
+    public static final Node STORE    = NodeFactory.createURI(NS + "store");
+
+    protected static final int WRITE_BATCH = 200;
+
+    protected Dataset dataset;
+    protected long ttl;
+    protected LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    protected ExecutorService writer = Executors.newSingleThreadExecutor();
+    protected ReadWriteLock lock = new ReentrantReadWriteLock();
+    protected boolean closed = false;   // guarded by lock
+    protected long lastPrune;           // writer thread only
+
+    /**
+     * Open a store
+     * @param dir directory in which the TDB files are held, will be created if necessary
+     * @param ttl time (in milliseconds) for which stored descriptions remain valid, 0 for no expiry
+     * @param epoch identifies the version of the source data, stored descriptions are discarded if
+     * this differs from the epoch they were stored under. May be null, in which case descriptions
+     * from an earlier run are discarded unless ttl is set.
+     */
+    public DescriptionStore(File dir, long ttl, String epoch) {
+        dir.mkdirs();
+        this.dataset = TDBFactory.createDataset( dir.getPath() );
+        this.ttl = ttl;
+        checkEpoch(epoch);
+        if (ttl > 0) {
+            prune( System.currentTimeMillis() - ttl );
+        }
+    }
+
+    /**
+     * Discard the stored descriptions unless they can be trusted to
+     * match the current source data, then record the current epoch.
+     */
+    protected void checkEpoch(String epoch) {
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            Graph meta = dsg.getDefaultGraph();
+            String stored = getEpoch(meta);
+            boolean keep = (epoch == null) ? ttl > 0 : epoch.equals(stored);
+            if (!keep && !meta.isEmpty()) {
+                log.info("Discarding persisted descriptions, stored under epoch " + stored + " now " + epoch);
+                List<Node> graphs = new ArrayList<>();
+                for (Iterator<Node> i = dsg.listGraphNodes(); i.hasNext();) {
+                    graphs.add( i.next() );
+                }
+                for (Node graph : graphs) {
+                    dsg.removeGraph(graph);
+                }
+                meta.clear();
+            }
+            meta.remove(STORE, EPOCH, Node.ANY);
+            if (epoch != null) {
+                meta.add( new Triple(STORE, EPOCH, NodeFactory.createLiteral(epoch)) );
+            }
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * Return a stored description of the node with at least the required coverage, if
+     * there is one which was fetched after the given time and has not expired.
+     */
+    public NodeDescription get(Node node, Coverage coverage, long validFrom) {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            return doGet(node, coverage, validFrom);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    protected NodeDescription doGet(Node node, Coverage coverage, long validFrom) {
+        dataset.begin(ReadWrite.READ);
+        try {
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            Graph meta = dsg.getDefaultGraph();
+            Coverage stored = getCoverage(meta, node);
+            if (stored == null || (coverage == Coverage.FULL && stored != Coverage.FULL)) {
+                return null;
+            }
+            long time = getStoredTime(meta, node);
+            if (time <= validFrom || (ttl > 0 && System.currentTimeMillis() - time > ttl)) {
+                return null;
+            }
+            return new NodeDescription(node, copy( dsg.getGraph(node) ), stored);
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * Queue a description, fetched now, to be stored. A label description will not replace
+     * a full description.
+     */
+    public void put(NodeDescription description) {
+        put(description, System.currentTimeMillis());
+    }
+
+    /**
+     * Queue a description to be stored. A label description will not replace
+     * a full description.
+     * @param fetched the time at which the description was fetched from the source
+     */
+    public void put(NodeDescription description, long fetched) {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            pending.add( new Pending(description, fetched) );
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return up to limit of the most recently stored descriptions which
+     * were fetched after the given time and have not expired.
+     */
+    public List<NodeDescription> load(int limit, long validFrom) {
+        List<NodeDescription> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (!closed) {
+                doLoad(limit, validFrom, results);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    protected void doLoad(int limit, long validFrom, List<NodeDescription> results) {
+        dataset.begin(ReadWrite.READ);
+        try {
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            Graph meta = dsg.getDefaultGraph();
+            List<Triple> entries = meta.find(Node.ANY, STORED, Node.ANY).toList();
+            Collections.sort(entries, new Comparator<Triple>() {
+                @Override
+                public int compare(Triple a, Triple b) {
+                    return Long.compare(timeOf(b), timeOf(a));
+                }
+            });
+            long now = System.currentTimeMillis();
+            for (Triple t : entries) {
+                if (results.size() >= limit) break;
+                long time = timeOf(t);
+                if (time <= validFrom || (ttl > 0 && now - time > ttl)) break;
+                Node node = t.getSubject();
+                Coverage coverage = getCoverage(meta, node);
+                if (coverage != null) {
+                    results.add( new NodeDescription(node, copy( dsg.getGraph(node) ), coverage) );
+                }
+            }
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * Wait for pending writes and close the store. Any later
+     * lookups find nothing and later puts are ignored.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writer.shutdown();
+        try {
+            if ( ! writer.awaitTermination(10, TimeUnit.SECONDS) ) {
+                log.warn("Timed out writing descriptions to persistent cache, " + pending.size() + " discarded");
+                writer.shutdownNow();
+                writer.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dataset.close();
+    }
+
+    /**
+     * Number of descriptions held in the store, including any which have expired
+     * but not yet been removed
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            dataset.begin(ReadWrite.READ);
+            try {
+                return dataset.asDatasetGraph().getDefaultGraph().find(Node.ANY, STORED, Node.ANY).toList().size();
+            } finally {
+                dataset.end();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Runs on the writer thread only
+    protected void flush() {
+        List<Pending> batch = new ArrayList<>();
+        pending.drainTo(batch, WRITE_BATCH);
+        if (batch.isEmpty()) {
+            return;
+        }
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            Graph meta = dsg.getDefaultGraph();
+            for (Pending p : batch) {
+                NodeDescription nd = p.description;
+                Node node = nd.getRoot();
+                Coverage coverage = getCoverage(meta, node);
+                if (coverage != null && getStoredTime(meta, node) > p.fetched) {
+                    // Already have a later description
+                    continue;
+                }
+                if (nd.getCoverage() != Coverage.FULL && coverage == Coverage.FULL) {
+                    continue;
+                }
+                dsg.deleteAny(node, Node.ANY, Node.ANY, Node.ANY);
+                for (Iterator<Triple> i = nd.getGraph().find(Node.ANY, Node.ANY, Node.ANY); i.hasNext();) {
+                    Triple t = i.next();
+                    dsg.add(node, t.getSubject(), t.getPredicate(), t.getObject());
+                }
+                for (Triple t : meta.find(node, Node.ANY, Node.ANY).toList()) {
+                    meta.delete(t);
+                }
+                meta.add( new Triple(node, COVERAGE, NodeFactory.createLiteral(nd.getCoverage().name())) );
+                meta.add( new Triple(node, STORED, NodeFactory.createLiteral(Long.toString(p.fetched), null, XSDDatatype.XSDlong)) );
+            }
+            dataset.commit();
+        } catch (Exception e) {
+            log.warn("Failed to write descriptions to persistent cache", e);
+        } finally {
+            dataset.end();
+        }
+        long now = System.currentTimeMillis();
+        if (ttl > 0 && now - lastPrune > ttl) {
+            prune(now - ttl);
+        }
+    }
+
+    /**
+     * Remove descriptions stored before the given time.
+     * Runs on the writer thread, or from the constructor before the writer is used.
+     */
+    protected void prune(long before) {
+        lastPrune = System.currentTimeMillis();
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            Graph meta = dsg.getDefaultGraph();
+            int count = 0;
+            for (Triple t : meta.find(Node.ANY, STORED, Node.ANY).toList()) {
+                if (timeOf(t) < before) {
+                    Node node = t.getSubject();
+                    dsg.removeGraph(node);
+                    for (Triple m : meta.find(node, Node.ANY, Node.ANY).toList()) {
+                        meta.delete(m);
+                    }
+                    count++;
+                }
+            }
+            dataset.commit();
+            if (count > 0) {
+                log.debug("Removed " + count + " expired descriptions from persistent cache");
+            }
+        } catch (Exception e) {
+            log.warn("Failed to remove expired descriptions from persistent cache", e);
+        } finally {
+            dataset.end();
+        }
+    }
+
+    protected Coverage getCoverage(Graph meta, Node node) {
+        ExtendedIterator<Triple> i = meta.find(node, COVERAGE, Node.ANY);
+        try {
+            return i.hasNext() ? Coverage.valueOf( i.next().getObject().getLiteralLexicalForm() ) : null;
+        } finally {
+            i.close();
+        }
+    }
+
+    protected String getEpoch(Graph meta) {
+        ExtendedIterator<Triple> i = meta.find(STORE, EPOCH, Node.ANY);
+        try {
+            return i.hasNext() ? i.next().getObject().getLiteralLexicalForm() : null;
+        } finally {
+            i.close();
+        }
+    }
+
+    protected long getStoredTime(Graph meta, Node node) {
+        ExtendedIterator<Triple> i = meta.find(node, STORED, Node.ANY);
+        try {
+            return i.hasNext() ? timeOf(i.next()) : 0;
+        } finally {
+            i.close();
+        }
+    }
+
+    protected static long timeOf(Triple t) {
+        return Long.parseLong( t.getObject().getLiteralLexicalForm() );
+    }
+
+    /**
+     * A description waiting to be written, and the time it was fetched
+     */
+    protected static class Pending {
+        protected final NodeDescription description;
+        protected final long fetched;
+
+        public Pending(NodeDescription description, long fetched) {
+            this.description = description;
+            this.fetched = fetched;
+        }
+    }
+
+    // Take a copy of a stored graph so it can be used outside the transaction
+    protected Graph copy(Graph graph) {
+        Graph copy = new GraphMem();
+        for (Iterator<Triple> i = graph.find(Node.ANY, Node.ANY, Node.ANY); i.hasNext();) {
+            copy.add( i.next() );
+        }
+        return copy;
+    }
+}
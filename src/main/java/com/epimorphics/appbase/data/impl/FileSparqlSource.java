@@ -11,18 +11,36 @@ package com.epimorphics.appbase.data.impl;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+import org.apache.jena.query.text.DatasetGraphText;
+import org.apache.jena.query.text.TextIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
 import com.hp.hpl.jena.util.FileManager;
 
 /**
  * SparqlSource which serves a set of files from a single union
  * memory model.
+ * <p>
+ * On (re)load the files are parsed in parallel, each into its own
+ * model, and then merged into the dataset under a single write so that
+ * queries never see a partial load and a parse error leaves the dataset
+ * unchanged. Any text index updates from the merge are committed as one batch.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
@@ -30,6 +48,7 @@ public class FileSparqlSource extends DatasetSparqlSource implements SparqlSourc
     static Logger log = LoggerFactory.getLogger( FileSparqlSource.class );
     
     protected String fileSpec = "";
+    protected int loadThreads = Runtime.getRuntime().availableProcessors();
     
     /**
      * Configuration call to set file or directories from which to load,
@@ -39,30 +58,109 @@ public class FileSparqlSource extends DatasetSparqlSource implements SparqlSourc
         this.fileSpec = fileSpec;
     }
     
+    /**
+     * Number of files to parse in parallel, defaults to the number of processors
+     */
+    public void setLoadThreads(long threads) {
+        this.loadThreads = (int) Math.max(1, threads);
+    }
+    
     public void startup(App app) {
         super.startup(app);
         reload();
     }
     
-    private void load(File f) {
-        FileManager.get().readModel(dataset.getDefaultModel(), f.getPath());
-        log.info("Loaded file: " + f);
-    }
-    
     /**
      * Reload the configured files and directories
      */
     public void reload() {
+        long start = System.currentTimeMillis();
+        List<File> files = new ArrayList<>();
         for (String fname : fileSpec.split(",")) {
             File f = asFile(fname);
             if (f.isDirectory()) {
                 for (String file : f.list(new RDFFileNames())) {
-                    load( new File(f, file) );
+                    files.add( new File(f, file) );
                 }
             } else {
-                load(f);
+                files.add(f);
             }
         }
+        List<Model> models = parse(files);
+        
+        boolean ok = false;
+        TextIndex index = getBatchIndex();
+        beginWrite();
+        try {
+            if (index != null) {
+                index.startIndexing();
+            }
+            Model target = dataset.getDefaultModel();
+            for (Model model : models) {
+                target.add(model);
+            }
+            if (index != null) {
+                index.finishIndexing();
+            }
+            ok = true;
+        } finally {
+            if (index != null && !ok) {
+                index.abortIndexing();
+            }
+            endWrite(ok);
+        }
+        incrementGeneration();
+        log.info( String.format("Loaded %d files in %dms", files.size(), System.currentTimeMillis() - start) );
+    }
+    
+    /**
+     * Parse each file into a separate model, in parallel. Results are in the order of the files.
+     */
+    protected List<Model> parse(List<File> files) {
+        ForkJoinPool pool = new ForkJoinPool( Math.min(loadThreads, Math.max(1, files.size())) );
+        try {
+            List<Callable<Model>> tasks = new ArrayList<>( files.size() );
+            for (final File f : files) {
+                tasks.add( new Callable<Model>() {
+                    @Override
+                    public Model call() {
+                        Model model = ModelFactory.createDefaultModel();
+                        FileManager.get().readModel(model, f.getPath());
+                        log.info("Loaded file: " + f);
+                        return model;
+                    }
+                });
+            }
+            List<Model> models = new ArrayList<>( files.size() );
+            for (Future<Model> future : pool.invokeAll(tasks)) {
+                models.add( future.get() );
+            }
+            return models;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EpiException("Interrupted while loading files for " + getName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new EpiException(cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * The text index, if any, whose updates should be batched over a load.
+     * A transactional text dataset already batches index updates per
+     * transaction, otherwise each triple added is committed to the index separately.
+     */
+    protected TextIndex getBatchIndex() {
+        DatasetGraph dsg = dataset.asDatasetGraph();
+        if (!transactional && dsg instanceof DatasetGraphText) {
+            return ((DatasetGraphText) dsg).getTextIndex();
+        }
+        return null;
     }
     
     public static class RDFFileNames implements FilenameFilter {
@@ -0,0 +1,98 @@
+/******************************************************************
+ * File:        GenerationTrackingAccessor.java
+ * Created by:  Dave Reynolds
+ * Created on:  8 May 2014
+ * 
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import com.epimorphics.appbase.data.SparqlSource;
+import com.hp.hpl.jena.query.DatasetAccessor;
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * Wraps the DatasetAccessor for a source so that any writes made
+ * through it increment the source's generation count.
+ */
+public class GenerationTrackingAccessor implements DatasetAccessor {
+    protected DatasetAccessor wrapped;
+    protected SparqlSource source;
+    
+    public GenerationTrackingAccessor(DatasetAccessor wrapped, SparqlSource source) {
+        this.wrapped = wrapped;
+        this.source = source;
+    }
+
+    @Override
+    public Model getModel() {
+        return wrapped.getModel();
+    }
+
+    @Override
+    public Model getModel(String graphUri) {
+        return wrapped.getModel(graphUri);
+    }
+
+    @Override
+    public boolean containsModel(String graphURI) {
+        return wrapped.containsModel(graphURI);
+    }
+
+    @Override
+    public void putModel(Model data) {
+        try {
+            wrapped.putModel(data);
+        } finally {
+            source.incrementGeneration();
+        }
+    }
+
+    @Override
+    public void putModel(String graphUri, Model data) {
+        try {
+            wrapped.putModel(graphUri, data);
+        } finally {
+            source.incrementGeneration();
+        }
+    }
+
+    @Override
+    public void deleteDefault() {
+        try {
+            wrapped.deleteDefault();
+        } finally {
+            source.incrementGeneration();
+        }
+    }
+
+    @Override
+    public void deleteModel(String graphUri) {
+        try {
+            wrapped.deleteModel(graphUri);
+        } finally {
+            source.incrementGeneration();
+        }
+    }
+
+    @Override
+    public void add(Model data) {
+        try {
+            wrapped.add(data);
+        } finally {
+            source.incrementGeneration();
+        }
+    }
+
+    @Override
+    public void add(String graphUri, Model data) {
+        try {
+            wrapped.add(graphUri, data);
+        } finally {
+            source.incrementGeneration();
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/******************************************************************
+ * File:        LockingDatasetAccessor.java
+ * Created by:  Dave Reynolds
+ * Created on:  3 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+
+/**
+ * Provides a version of DatasetAccessor for a non-transactional dataset
+ * which takes the dataset's lock, so that writes don't run
+ * concurrently with queries. Gets are made safe by creating an in-memory copy so
+ * should normally be avoided in favour of selective query.
+ */
+public class LockingDatasetAccessor extends TransactionalDatasetAccessor {
+
+    public LockingDatasetAccessor(Dataset dataset) {
+        super(dataset);
+    }
+
+    @Override
+    protected void beginRead() {
+        dataset.getLock().enterCriticalSection(Lock.READ);
+    }
+
+    @Override
+    protected void endRead() {
+        dataset.getLock().leaveCriticalSection();
+    }
+
+    @Override
+    protected void beginWrite() {
+        dataset.getLock().enterCriticalSection(Lock.WRITE);
+    }
+
+    @Override
+    protected void commit() {
+        // Changes are applied directly, nothing to commit
+    }
+
+    @Override
+    protected void endWrite() {
+        dataset.getLock().leaveCriticalSection();
+    }
+
+}
@@ -11,9 +11,13 @@ package com.epimorphics.appbase.data.impl;
 
 import com.epimorphics.appbase.data.SparqlSource;
 import com.hp.hpl.jena.query.DatasetAccessor;
+import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.Lock;
 import com.hp.hpl.jena.update.GraphStore;
 import com.hp.hpl.jena.update.GraphStoreFactory;
 import com.hp.hpl.jena.update.UpdateExecutionFactory;
@@ -43,14 +47,28 @@ public class ModelSparqlSource extends BaseSparqlSource implements SparqlSource
 
     @Override
     protected QueryExecution start(String queryString) {
-        model.enterCriticalSection(true);
-        return QueryExecutionFactory.create(queryString, model);
+        return start(QueryFactory.create(queryString), null);
+    }
+    
+    @Override
+    protected QueryExecution startWithBindings(String queryString, QuerySolution bindings) {
+        return start(parse(queryString), bindings);
+    }
+    
+    protected QueryExecution start(Query query, QuerySolution bindings) {
+        // Create the execution before locking so a failure can't leave the lock held
+        QueryExecution qexec = QueryExecutionFactory.create(query, model, bindings);
+        model.enterCriticalSection(Lock.READ);
+        return qexec;
     }
 
     @Override
     protected void finish(QueryExecution qexec) {
-        qexec.close();
-        model.leaveCriticalSection();
+        try {
+            qexec.close();
+        } finally {
+            model.leaveCriticalSection();
+        }
     }
     
 
@@ -67,9 +85,13 @@ public class ModelSparqlSource extends BaseSparqlSource implements SparqlSource
 
     @Override
     public void update(UpdateRequest update) {
-        model.enterCriticalSection(true);
-        UpdateExecutionFactory.create(update, getGraphStore()).execute();
-        model.leaveCriticalSection();
+        model.enterCriticalSection(Lock.WRITE);
+        try {
+            UpdateExecutionFactory.create(update, getGraphStore()).execute();
+        } finally {
+            model.leaveCriticalSection();
+            incrementGeneration();
+        }
     }
     
     protected GraphStore getGraphStore() {
@@ -0,0 +1,96 @@
+/******************************************************************
+ * File:        QueryTask.java
+ * Created by:  Dave Reynolds
+ * Created on:  30 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+
+import com.hp.hpl.jena.query.QueryExecution;
+
+/**
+ * A background query whose cancellation aborts the query execution
+ * itself, rather than just interrupting the thread (which a query
+ * blocked on an HTTP response or working through a TDB scan won't notice).
+ * Sources report each execution they start via started(), which
+ * associates it with the task running on the current thread, if any.
+ * Work a task hands off to other threads (such as the chunks of a large
+ * describe) is registered via forked() so that it is cancelled too.
+ */
+public class QueryTask<T> extends FutureTask<T> {
+    protected static final ThreadLocal<QueryTask<?>> current = new ThreadLocal<>();
+
+    protected volatile QueryExecution qexec;
+    protected final List<QueryTask<?>> forks = new CopyOnWriteArrayList<>();
+
+    public QueryTask(Callable<T> callable) {
+        super(callable);
+    }
+
+    /**
+     * Record that a query execution has started on this thread, so that
+     * it can be aborted if the enclosing task is cancelled.
+     */
+    public static void started(QueryExecution qexec) {
+        QueryTask<?> task = current.get();
+        if (task != null) {
+            task.qexec = qexec;
+            if (task.isCancelled()) {
+                qexec.abort();
+            }
+        }
+    }
+
+    /**
+     * Record that a task has been created on behalf of the task running on
+     * this thread, so that it is cancelled along with the enclosing task.
+     */
+    public static void forked(QueryTask<?> fork) {
+        QueryTask<?> task = current.get();
+        if (task != null) {
+            task.forks.add(fork);
+            if (task.isCancelled()) {
+                fork.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        QueryTask<?> outer = current.get();
+        current.set(this);
+        try {
+            super.run();
+        } finally {
+            qexec = null;
+            if (outer == null) {
+                current.remove();
+            } else {
+                current.set(outer);
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        QueryExecution q = qexec;
+        if (cancelled && mayInterruptIfRunning && q != null) {
+            q.abort();
+        }
+        if (cancelled && mayInterruptIfRunning) {
+            for (QueryTask<?> fork : forks) {
+                fork.cancel(true);
+            }
+        }
+        return cancelled;
+    }
+}
@@ -9,52 +9,160 @@
 
 package com.epimorphics.appbase.data.impl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.ObjectName;
+
+import org.apache.http.HttpStatus;
 import org.apache.jena.riot.WebContent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.core.TimerManager;
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.data.impl.ReplicaSet.Replica;
+import com.epimorphics.appbase.data.impl.ReplicaSet.Routing;
+import com.epimorphics.appbase.util.BoundedExecutor;
+import com.epimorphics.appbase.util.LatencyHistogram;
+import com.epimorphics.appbase.util.MBeans;
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.mem.GraphMem;
 import com.hp.hpl.jena.query.DatasetAccessor;
 import com.hp.hpl.jena.query.DatasetAccessorFactory;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
+import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
 import com.hp.hpl.jena.update.UpdateExecutionFactory;
 import com.hp.hpl.jena.update.UpdateRequest;
 
 /**
  * Sparql source for querying remote sparql endpoints. Configuration options:
  * <ul>
- *   <li>endpoint - URL for the SPARQL query endpoint</li>
+ *   <li>endpoint - URL for the SPARQL query endpoint, or a comma separated list of
+ *   URLs of equivalent read replicas across which queries are spread (see ReplicaSet)</li>
  *   <li>updateEndpoint - optional URL for the SPARQL update endpoint</li>
  *   <li>graphEndpoint - optional URL for the graph store protocol endpoint</li>
- *   <li>contentType - set the type of the data requested for query results, one of "xml", "json", "tsv", "csv"</li>
+ *   <li>contentType - set the type of the data requested for select results, one of "auto", "xml", "json", "tsv", "csv".
+ *   The default, "auto", asks for TSV, which is the most compact and cheapest to parse of the formats
+ *   Jena supports. Results are parsed in whatever format the endpoint returns and if it refuses
+ *   TSV altogether (406) the source switches to XML.</li>
+ *   <li>pooled - reuse HTTP connections, default true (see SharedHttpClient)</li>
+ *   <li>maxConnections - maximum concurrent connections to the endpoint host, default 20</li>
+ *   <li>keepAlive - time (ms) for which idle connections are retained, default 30s. This is
+ *   shared by all pooled sources, only the first source to start sets it</li>
+ *   <li>connectTimeout - connection timeout (ms), default is no timeout</li>
+ *   <li>readTimeout - timeout (ms) waiting for response data, default is no timeout</li>
+ *   <li>queryTimeout - for a remote source this is also a timeout waiting for response data,
+ *   overriding readTimeout for queries</li>
+ *   <li>gzip - request compressed query results, default false</li>
+ *   <li>maxConcurrency - limit on concurrent queries, the actual limit adapts to the endpoint's
+ *   response (see AdaptiveLimiter), default 0 meaning no limit</li>
+ *   <li>slowQueryTime - queries slower than this (ms) reduce the concurrency limit, default 5s</li>
+ *   <li>breakerThreshold - number of consecutive failures which stop all queries for a time, default 0 meaning never</li>
+ *   <li>breakerResetTime - time (ms) after which a tripped breaker allows a trial query, default 10s</li>
+ *   <li>routing - how queries are spread over replicas, "least" (fewest outstanding queries) or
+ *   "latency" (outstanding queries weighted by response time), default "least"</li>
+ *   <li>replicaFailures - number of consecutive failures after which a replica is taken out of rotation, default 3</li>
+ *   <li>healthCheckInterval - time (ms) between health checks of replicas out of rotation, default 30s</li>
+ *   <li>hedgePercentile - if a select or describe has not returned within this percentile of recent
+ *   query times (e.g. 95) a duplicate is sent to another replica and the first answer used, default 0 meaning no hedging</li>
+ *   <li>hedgeDelay - fixed delay (ms) after which a select or describe is duplicated, overrides hedgePercentile</li>
  * </ul>
+ * <p>
+ * Hedging only applies when there is more than one replica and, when using
+ * hedgePercentile, once enough queries have completed to estimate the delay.
+ * Since it duplicates roughly (100 - hedgePercentile)% of queries it should
+ * only be used with a high percentile. The duplicates run on a bounded pool of
+ * hedge threads, if those are all busy a slow query is simply not duplicated.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
 public class RemoteSparqlSource extends BaseSparqlSource implements SparqlSource {
     static Logger log = LoggerFactory.getLogger(RemoteSparqlSource.class);
     
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    
     static protected Map<String, String> typeMap = new HashMap<String, String>();
     static {
+        // QueryEngineHTTP only takes a single type, so "auto" asks for the cheapest
+        // to parse which keeps full term information and falls back to XML if refused
+        typeMap.put("auto", WebContent.contentTypeTextTSV);
         typeMap.put("xml", WebContent.contentTypeResultsXML);
         typeMap.put("json", WebContent.contentTypeResultsJSON);
         typeMap.put("tsv", WebContent.contentTypeTextTSV);
         typeMap.put("csv", WebContent.contentTypeTextCSV);
     }
             
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 30 * 1000;
+    
+    /** Number of query times needed before the hedge delay is estimated */
+    public static final int MIN_HEDGE_SAMPLES = 100;
+    
     protected String endpoint;
-    protected String contentType = WebContent.contentTypeResultsXML;
+    protected List<String> queryEndpoints = new ArrayList<>();
+    protected volatile String contentType = WebContent.contentTypeTextTSV;
+    protected boolean negotiate = true;
     protected String updateEndpoint;
     protected String graphEndpoint;
     protected DatasetAccessor accessor;
+    protected boolean pooled = true;
+    protected int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    protected long keepAlive = SharedHttpClient.DEFAULT_KEEP_ALIVE;
+    protected long connectTimeout = 0;
+    protected long readTimeout = 0;
+    protected boolean gzip = false;
+    protected SharedHttpClient client;
+    protected int maxConcurrency = 0;
+    protected long slowQueryTime = 5000;
+    protected int breakerThreshold = 0;
+    protected long breakerResetTime = 10000;
+    protected AdaptiveLimiter limiter;
+    protected ObjectName limiterName;
+    protected Routing routing = Routing.LEAST_OUTSTANDING;
+    protected int replicaFailures = 3;
+    protected long healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+    protected ReplicaSet replicas;
+    protected ScheduledFuture<?> healthCheck;
+    protected ExecutorService healthExecutor;
+    protected double hedgePercentile = 0;
+    protected long hedgeDelay = 0;
+    protected final LatencyHistogram latencies = new LatencyHistogram();
+    protected final AtomicLong hedges = new AtomicLong();
+    protected final AtomicLong hedgeWins = new AtomicLong();
+    protected ExecutorService hedgeExecutor;
+    protected ConcurrentHashMap<QueryExecution, Permit> permits = new ConcurrentHashMap<>();
     
+    /**
+     * Set the query endpoint, or a comma separated list of equivalent replica endpoints
+     */
     public void setEndpoint(String endpoint) {
-        this.endpoint = endpoint;
+        queryEndpoints.clear();
+        for (String url : endpoint.split(",")) {
+            if ( ! url.trim().isEmpty() ) {
+                queryEndpoints.add( url.trim() );
+            }
+        }
+        this.endpoint = queryEndpoints.isEmpty() ? null : queryEndpoints.get(0);
     }
     
     public void setUpdateEndpoint(String endpoint) {
@@ -67,33 +175,681 @@ public class RemoteSparqlSource extends BaseSparqlSource implements SparqlSource
     
     /**
      * Set the content type to request from the remote endpoint.
-     * Legal values are "xml", "json", "tsv", "csv".
+     * Legal values are "auto", "xml", "json", "tsv", "csv".
+     * The results are parsed according to the type the endpoint actually returns.
      */
     public void setContentType(String type) {
         contentType = typeMap.get(type);
+        negotiate = "auto".equals(type);
         if (contentType == null){
             log.error("Illegal contentType for remote source (" + type + ")");
         }
     }
 
+    /**
+     * Set to false to open a new connection for each request rather
+     * than using a shared pool of keep-alive connections.
+     */
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+    
+    /**
+     * Set the maximum number of concurrent connections to the endpoint host, default is 20
+     */
+    public void setMaxConnections(long max) {
+        this.maxConnections = (int)max;
+    }
+    
+    /**
+     * Set the time (in milliseconds) for which idle connections are kept open
+     * if the endpoint does not specify, default is 30s.
+     */
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+    
+    /**
+     * Set the timeout (in milliseconds) for establishing a connection, default is none
+     */
+    public void setConnectTimeout(long timeout) {
+        this.connectTimeout = timeout;
+    }
+    
+    /**
+     * Set the timeout (in milliseconds) while waiting for response data, default is none
+     */
+    public void setReadTimeout(long timeout) {
+        this.readTimeout = timeout;
+    }
+    
+    /**
+     * Set to true to request gzip compressed query results
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+    
+    /**
+     * Set the maximum number of concurrent queries to the endpoint, 0 for no limit
+     */
+    public void setMaxConcurrency(long max) {
+        this.maxConcurrency = (int)max;
+    }
+    
+    /**
+     * Set the query time (ms) above which the endpoint is treated as overloaded
+     */
+    public void setSlowQueryTime(long time) {
+        this.slowQueryTime = time;
+    }
+    
+    /**
+     * Set the number of consecutive query failures after which queries will
+     * be refused for a time, 0 to disable
+     */
+    public void setBreakerThreshold(long threshold) {
+        this.breakerThreshold = (int)threshold;
+    }
+    
+    /**
+     * Set the time (ms) for which queries are refused once the breaker trips
+     */
+    public void setBreakerResetTime(long time) {
+        this.breakerResetTime = time;
+    }
+    
+    /**
+     * Set how queries are spread over replica endpoints, "least" or "latency"
+     */
+    public void setRouting(String routing) {
+        if (routing.equals("least")) {
+            this.routing = Routing.LEAST_OUTSTANDING;
+        } else if (routing.equals("latency")) {
+            this.routing = Routing.LATENCY;
+        } else {
+            log.error("Illegal routing for remote source (" + routing + ")");
+        }
+    }
+    
+    /**
+     * Set the number of consecutive failures after which a replica is taken out of rotation
+     */
+    public void setReplicaFailures(long failures) {
+        this.replicaFailures = (int)failures;
+    }
+    
+    /**
+     * Set the time (ms) between health checks of replicas which are out of rotation, 0 to disable
+     */
+    public void setHealthCheckInterval(long interval) {
+        this.healthCheckInterval = interval;
+    }
+    
+    /**
+     * Set the percentile of recent query times after which a slow
+     * select or describe is duplicated to another replica, 0 to disable
+     */
+    public void setHedgePercentile(long percentile) {
+        this.hedgePercentile = percentile;
+    }
+    
+    /**
+     * Set a fixed delay (ms) after which a slow select or describe is
+     * duplicated to another replica, 0 to use hedgePercentile
+     */
+    public void setHedgeDelay(long delay) {
+        this.hedgeDelay = delay;
+    }
+    
+    /**
+     * Return the current delay (ms) after which a query is duplicated,
+     * or -1 if queries are not currently being hedged
+     */
+    public long getHedgeDelay() {
+        if (replicas == null || replicas.size() < 2) {
+            return -1;
+        }
+        if (hedgeDelay > 0) {
+            return hedgeDelay;
+        }
+        if (hedgePercentile > 0 && latencies.getCount() >= MIN_HEDGE_SAMPLES) {
+            return Math.max(1, (long)Math.ceil( latencies.getPercentile(hedgePercentile) ));
+        }
+        return -1;
+    }
+    
+    /**
+     * Return the histogram of recent select and describe query times
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+    
+    /** Number of queries which have been duplicated to a second replica */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+    
+    /** Number of duplicated queries where the duplicate answered first */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+    
+    /**
+     * Return the query endpoints and their current state
+     */
+    public ReplicaSet getReplicas() {
+        return replicas;
+    }
+    
+    /**
+     * Return the concurrency limiter and circuit breaker, null if not configured
+     */
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+    
+    @Override
+    public void startup(App app) {
+        super.startup(app);
+        if (queryEndpoints.isEmpty()) {
+            throw new EpiException("No query endpoint configured for remote source " + getName());
+        }
+        replicas = new ReplicaSet(queryEndpoints, replicaFailures, healthCheckInterval > 0 ? healthCheckInterval : DEFAULT_HEALTH_CHECK_INTERVAL);
+        replicas.setRouting(routing);
+        if (replicas.size() > 1 && healthCheckInterval > 0) {
+            // Probes block so they run on their own thread, the shared timer just
+            // dispatches them and a check is skipped if the last one is still running
+            final ReplicaSet rs = replicas;
+            final ExecutorService probes = BoundedExecutor.create("health-" + getName(), 1, 1, new ThreadPoolExecutor.AbortPolicy());
+            healthExecutor = probes;
+            final Runnable check = new Runnable() {
+                @Override
+                public void run() {
+                    rs.checkHealth();
+                }
+            };
+            healthCheck = TimerManager.get().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        probes.execute(check);
+                    } catch (RejectedExecutionException e) {
+                        log.debug("Skipping replica health check, previous check still running");
+                    }
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+        if (maxConcurrency > 0 || breakerThreshold > 0) {
+            int max = maxConcurrency > 0 ? maxConcurrency : Integer.MAX_VALUE;
+            limiter = new AdaptiveLimiter(getName(), max, slowQueryTime, breakerThreshold, breakerResetTime);
+            limiterName = MBeans.register(limiter, "RemoteSparqlSource", app.getName() + "." + getName());
+        }
+        // Even an unpooled source registers its endpoints since updates and graph store
+        // requests go through the HttpOp default client if any other source is pooled
+        client = SharedHttpClient.acquire();
+        if (pooled) {
+            client.setKeepAlive(keepAlive);
+        }
+        List<String> urls = new ArrayList<>(queryEndpoints);
+        urls.add(updateEndpoint);
+        urls.add(graphEndpoint);
+        for (String url : urls) {
+            client.setMaxConnections(url, maxConnections);
+            client.setEndpoint(url, connectTimeout, readTimeout, pooled);
+        }
+    }
+    
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        synchronized (this) {
+            if (hedgeExecutor != null) {
+                hedgeExecutor.shutdown();
+                hedgeExecutor = null;
+            }
+        }
+        if (healthCheck != null) {
+            healthCheck.cancel(false);
+            healthCheck = null;
+        }
+        if (healthExecutor != null) {
+            healthExecutor.shutdownNow();
+            healthExecutor = null;
+        }
+        MBeans.unregister(limiterName);
+        limiterName = null;
+        if (client != null) {
+            client = null;
+            SharedHttpClient.release();
+        }
+    }
+
+    protected synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            int threads = maxConnections * replicas.size();
+            hedgeExecutor = BoundedExecutor.create("hedge-" + getName(), threads, threads, new ThreadPoolExecutor.AbortPolicy());
+        }
+        return hedgeExecutor;
+    }
+    
+    @Override
+    public ResultSet select(String queryString, long timeout) {
+        try {
+            return execute(queryString, timeout, SELECT);
+        } catch (QueryExceptionHTTP e) {
+            // failed() will have switched to a format the endpoint should accept
+            if (negotiate && e.getResponseCode() == HttpStatus.SC_NOT_ACCEPTABLE) {
+                return execute(queryString, timeout, SELECT);
+            }
+            throw e;
+        }
+    }
+    
+    @Override
+    public ResultSet select(String queryString, QuerySolution bindings, long timeout) {
+        if (bindings != null) {
+            queryString = substitute(queryString, bindings);
+        }
+        return select(queryString, timeout);
+    }
+    
+    @Override
+    public Graph describe(String queryString) {
+        return execute(queryString, 0, DESCRIBE);
+    }
+    
+    /**
+     * Run a query, hedging it if that is enabled
+     */
+    protected <T> T execute(String queryString, long timeout, Execution<T> execution) {
+        long delay = getHedgeDelay();
+        if (delay >= 0) {
+            return new Hedge<T>(queryString, timeout, execution).run(delay);
+        }
+        QueryExecution qexec = start(queryString);
+        try {
+            prepare(qexec, timeout);
+            return timed(qexec, execution);
+        } catch (RuntimeException e) {
+            failed(qexec, e);
+            throw e;
+        } finally {
+            finish(qexec);
+        }
+    }
+    
+    protected <T> T timed(QueryExecution qexec, Execution<T> execution) {
+        long startTime = System.nanoTime();
+        T result = execution.run(qexec);
+        latencies.record(System.nanoTime() - startTime);
+        return result;
+    }
+    
     @Override
     protected QueryExecution start(String queryString) {
-        QueryExecution s = QueryExecutionFactory.sparqlService(endpoint, queryString);
+        return start(queryString, null);
+    }
+    
+    /**
+     * Start a query on any replica other than the one given, if possible
+     */
+    protected QueryExecution start(String queryString, Replica avoid) {
+        return start(queryString, avoid, false);
+    }
+    
+    /**
+     * Start a query on a replica other than the one given. If there is no other
+     * usable replica then either use it anyway or, if onlyOther is set, return null.
+     */
+    protected QueryExecution start(String queryString, Replica avoid, boolean onlyOther) {
+        AdaptiveLimiter l = limiter;
+        boolean probe = false;
+        if (l != null) {
+            probe = l.acquire();
+        }
+        Replica replica = null;
+        long startTime = System.nanoTime();
+        QueryExecution qexec;
+        try {
+            replica = replicas.acquire(avoid);
+            if (onlyOther && avoid != null && replica == avoid) {
+                replicas.cancel(replica);
+                if (l != null) {
+                    l.cancel(probe);
+                }
+                return null;
+            }
+            qexec = createExecution(replica.getURL(), queryString);
+        } catch (RuntimeException e) {
+            // Bad query, the endpoint was never asked so there is no outcome to record
+            if (replica != null) {
+                replicas.cancel(replica);
+            }
+            if (l != null) {
+                l.cancel(probe);
+            }
+            throw e;
+        }
+        permits.put(qexec, new Permit(l, probe, replica, startTime));
+        return qexec;
+    }
+    
+    protected QueryExecution createExecution(String url, String queryString) {
+        QueryExecution s = QueryExecutionFactory.sparqlService(url, queryString);
+        QueryEngineHTTP hs = (QueryEngineHTTP) s;
         if (contentType != null) {
-            QueryEngineHTTP hs = (QueryEngineHTTP) s;
             hs.setSelectContentType(contentType);
         }
+        hs.setAllowGZip(gzip);
+        if (connectTimeout > 0 || readTimeout > 0) {
+            hs.setTimeout(readTimeout > 0 ? readTimeout : -1, connectTimeout > 0 ? connectTimeout : -1);
+        }
         return s;
     }
 
     @Override
     protected void finish(QueryExecution qexec) {
-        qexec.close();
+        try {
+            qexec.close();
+        } finally {
+            Permit permit = permits.remove(qexec);
+            if (permit != null) {
+                long elapsed = System.nanoTime() - permit.startTime;
+                replicas.release(permit.replica, ! permit.failed, permit.abandoned ? -1 : elapsed);
+                if (permit.limiter != null) {
+                    permit.limiter.release(permit.probe, ! permit.failed, elapsed);
+                }
+            }
+        }
+    }
+    
+    @Override
+    protected void failed(QueryExecution qexec, RuntimeException e) {
+        Permit permit = permits.get(qexec);
+        if (permit != null && ! isQueryError(e)) {
+            permit.failed = true;
+        }
+        if (negotiate && e instanceof QueryExceptionHTTP && ((QueryExceptionHTTP)e).getResponseCode() == HttpStatus.SC_NOT_ACCEPTABLE
+                && ! WebContent.contentTypeResultsXML.equals(contentType)) {
+            log.warn("Endpoint for " + getName() + " won't return " + contentType + " results, switching to XML");
+            contentType = WebContent.contentTypeResultsXML;
+        }
+    }
+    
+    // A rejected query (4xx response) says nothing about the health of the endpoint
+    protected boolean isQueryError(RuntimeException e) {
+        if (e instanceof QueryExceptionHTTP) {
+            int code = ((QueryExceptionHTTP)e).getResponseCode();
+            return code >= 400 && code < 500;
+        }
+        return false;
+    }
+    
+    /**
+     * Record of a running query, the replica it was sent to and
+     * the concurrency limiter (if any) it is running under
+     */
+    protected static class Permit {
+        protected final AdaptiveLimiter limiter;
+        protected final boolean probe;
+        protected final Replica replica;
+        protected final long startTime;
+        protected volatile boolean failed = false;
+        protected volatile boolean abandoned = false;
+        
+        public Permit(AdaptiveLimiter limiter, boolean probe, Replica replica, long startTime) {
+            this.limiter = limiter;
+            this.probe = probe;
+            this.replica = replica;
+            this.startTime = startTime;
+        }
+    }
+    
+    /**
+     * The part of a query run once the execution has been started
+     */
+    protected interface Execution<T> {
+        public T run(QueryExecution qexec);
+    }
+    
+    protected static final Execution<ResultSet> SELECT = new Execution<ResultSet>() {
+        @Override
+        public ResultSet run(QueryExecution qexec) {
+            return ResultSetFactory.makeRewindable( qexec.execSelect() );
+        }
+    };
+    
+    protected static final Execution<Graph> DESCRIBE = new Execution<Graph>() {
+        @Override
+        public Graph run(QueryExecution qexec) {
+            Graph graph = new GraphMem();
+            for (Iterator<Triple> i = qexec.execDescribeTriples(); i.hasNext();) {
+                graph.add(i.next());
+            }
+            return graph;
+        }
+    };
+    
+    /**
+     * A query sent to one replica and, if that is slow to answer, duplicated
+     * to another. The first successful answer is used and the other query aborted.
+     * The original query runs on the calling thread and the duplicate on a hedge
+     * thread. If the duplicate answers first the original is aborted, which
+     * releases the caller. For a remote endpoint an abort only takes effect once
+     * the response has started, so a readTimeout bounds how long a caller whose
+     * original query has lost can still be held. If the original's replica is the
+     * only one in rotation no duplicate is sent.
+     */
+    protected class Hedge<T> {
+        protected final String queryString;
+        protected final long timeout;
+        protected final Execution<T> execution;
+        protected final List<Attempt> attempts = new ArrayList<>(2);
+        protected int failures = 0;
+        protected boolean done = false;
+        protected Attempt winner;
+        protected T result;
+        protected RuntimeException error;
+        
+        public Hedge(String queryString, long timeout, Execution<T> execution) {
+            this.queryString = queryString;
+            this.timeout = timeout;
+            this.execution = execution;
+        }
+        
+        public T run(long delay) {
+            // Start the original here, so its replica is known before any duplicate is sent
+            final Attempt primary = new Attempt(null);
+            primary.started( start(queryString, null) );
+            synchronized (this) {
+                attempts.add(primary);
+            }
+            // The timer only hands the duplicate to a hedge thread, it never waits for one
+            ScheduledFuture<?> dispatch = TimerManager.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    hedge(primary.replica);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            primary.execute();
+            try {
+                // Only waits if the original failed while a duplicate is still running
+                await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EpiException("Interrupted while waiting for query");
+            } finally {
+                dispatch.cancel(false);
+                cancelAll(winner);
+            }
+            synchronized (this) {
+                if (winner == null) {
+                    throw error;
+                }
+                if (winner != primary) {
+                    hedgeWins.incrementAndGet();
+                }
+                return result;
+            }
+        }
+        
+        protected void hedge(Replica avoid) {
+            Attempt attempt = new Attempt(avoid);
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                attempts.add(attempt);
+            }
+            try {
+                attempt.future = getHedgeExecutor().submit(attempt);
+            } catch (RejectedExecutionException e) {
+                // No free hedge thread, leave the original to finish on its own
+                skipped(attempt);
+            }
+        }
+        
+        protected synchronized void skipped(Attempt attempt) {
+            attempts.remove(attempt);
+            if (failures >= attempts.size()) {
+                done = true;
+                notifyAll();
+            }
+        }
+        
+        protected synchronized void await() throws InterruptedException {
+            while ( ! done ) {
+                wait();
+            }
+        }
+        
+        protected void cancelAll(Attempt except) {
+            List<Attempt> others;
+            synchronized (this) {
+                done = true;
+                others = new ArrayList<>(attempts);
+            }
+            for (Attempt attempt : others) {
+                if (attempt != except) {
+                    attempt.cancel();
+                }
+            }
+        }
+        
+        protected void succeeded(Attempt attempt, T value) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                winner = attempt;
+                result = value;
+                notifyAll();
+            }
+            // Abort the loser, which may be the caller's own query
+            cancelAll(attempt);
+        }
+        
+        protected synchronized void attemptFailed(RuntimeException e) {
+            failures++;
+            if (error == null) {
+                error = e;
+            }
+            if (failures >= attempts.size()) {
+                done = true;
+                notifyAll();
+            }
+        }
+        
+        protected class Attempt implements Runnable {
+            protected final Replica avoid;
+            protected volatile Replica replica;
+            protected volatile QueryExecution qexec;
+            protected volatile boolean cancelled = false;
+            protected volatile Future<?> future;
+            
+            public Attempt(Replica avoid) {
+                this.avoid = avoid;
+            }
+            
+            @Override
+            public void run() {
+                if (cancelled) return;
+                QueryExecution q;
+                try {
+                    q = start(queryString, avoid, true);
+                } catch (RuntimeException e) {
+                    attemptFailed(e);
+                    return;
+                }
+                if (q == null) {
+                    // The original's replica is the only one usable, a duplicate there wouldn't help
+                    skipped(this);
+                    return;
+                }
+                hedges.incrementAndGet();
+                started(q);
+                execute();
+            }
+            
+            protected void started(QueryExecution q) {
+                replica = permits.get(q).replica;
+                qexec = q;
+            }
+            
+            protected void execute() {
+                QueryExecution q = qexec;
+                Permit permit = permits.get(q);
+                long startTime = System.nanoTime();
+                try {
+                    if (cancelled) {
+                        permit.abandoned = true;
+                        return;
+                    }
+                    prepare(q, timeout);
+                    succeeded(this, timed(q, execution));
+                } catch (RuntimeException e) {
+                    if (cancelled) {
+                        // Aborted because the other query answered, not the endpoint's fault.
+                        // Still record the time so far so the slow tail isn't forgotten.
+                        permit.abandoned = true;
+                        latencies.record(System.nanoTime() - startTime);
+                    } else {
+                        failed(q, e);
+                        attemptFailed(e);
+                    }
+                } finally {
+                    finish(q);
+                }
+            }
+            
+            public void cancel() {
+                cancelled = true;
+                Future<?> f = future;
+                if (f != null) {
+                    f.cancel(false);
+                }
+                QueryExecution q = qexec;
+                if (q != null) {
+                    Permit permit = permits.get(q);
+                    if (permit != null) {
+                        permit.abandoned = true;
+                    }
+                    q.abort();
+                }
+            }
+        }
     }
 
     @Override
     public void update(UpdateRequest update) {
-        UpdateExecutionFactory.createRemote(update, updateEndpoint).execute();
+        try {
+            UpdateExecutionFactory.createRemote(update, updateEndpoint).execute();
+        } finally {
+            incrementGeneration();
+        }
     }
 
     @Override
@@ -104,7 +860,7 @@ public class RemoteSparqlSource extends BaseSparqlSource implements SparqlSource
     @Override
     public DatasetAccessor getAccessor() {
         if (accessor == null) {
-            accessor = DatasetAccessorFactory.createHTTP(graphEndpoint);
+            accessor = new GenerationTrackingAccessor( DatasetAccessorFactory.createHTTP(graphEndpoint), this );
         }
         return accessor;
     }
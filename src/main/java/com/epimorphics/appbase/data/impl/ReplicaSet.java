@@ -0,0 +1,273 @@
+/******************************************************************
+ * File:        ReplicaSet.java
+ * Created by:  Dave Reynolds
+ * Created on:  28 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
+
+/**
+ * A set of equivalent read-only query endpoints across which queries
+ * are spread.
+ * <p>
+ * Each query goes to the healthy replica with the fewest queries outstanding,
+ * ties going to the one which has been responding fastest. Alternatively, in
+ * latency routing, the outstanding count is weighted by the recent (exponentially
+ * averaged) response time of each replica.
+ * </p>
+ * <p>
+ * A replica which fails failureThreshold consecutive queries is taken out of
+ * rotation. It is put back when a health check query succeeds, either from
+ * checkHealth (run periodically by the owning source, it blocks on the probe
+ * queries so should not be run on a shared timer thread) or from a single trial
+ * query let through once retryTime has passed. If no replica is healthy queries go
+ * to the one which has been out of rotation longest, a lone endpoint is never removed.
+ * </p>
+ */
+public class ReplicaSet {
+    static Logger log = LoggerFactory.getLogger(ReplicaSet.class);
+
+    public static enum Routing {LEAST_OUTSTANDING, LATENCY};
+
+    /** Weight given to each new latency measurement in the running average */
+    protected static final double EWMA_WEIGHT = 0.2;
+
+    /** Timeout (ms) for health check queries */
+    public static final int PROBE_TIMEOUT = 5000;
+
+    public static final String PROBE_QUERY = "ASK {}";
+
+    protected final List<Replica> replicas;
+    protected final int failureThreshold;
+    protected final long retryNanos;
+    protected Routing routing = Routing.LEAST_OUTSTANDING;
+
+    /**
+     * Construct a replica set
+     * @param urls the query endpoint URLs
+     * @param failureThreshold number of consecutive failures after which a replica is removed from rotation
+     * @param retryTime time (in milliseconds) after which a removed replica is sent a trial query
+     */
+    public ReplicaSet(List<String> urls, int failureThreshold, long retryTime) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("A replica set needs at least one endpoint");
+        }
+        List<Replica> list = new ArrayList<>( urls.size() );
+        for (String url : urls) {
+            list.add( new Replica(url) );
+        }
+        this.replicas = Collections.unmodifiableList(list);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryTime);
+    }
+
+    public void setRouting(Routing routing) {
+        this.routing = routing;
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    public int size() {
+        return replicas.size();
+    }
+
+    /**
+     * Pick the replica to send the next query to, counting the query as
+     * outstanding. Each call must be matched by a call to release.
+     */
+    public Replica acquire() {
+        return acquire(null);
+    }
+
+    /**
+     * Pick the replica to send the next query to, preferring any
+     * replica other than the one given. The given replica is still returned
+     * if it is healthy and no other replica is, or if it is the only one.
+     * Each call must be matched by a call to release or cancel.
+     */
+    public synchronized Replica acquire(Replica avoid) {
+        Replica choice = null;
+        if (replicas.size() == 1) {
+            choice = replicas.get(0);
+        } else {
+            long now = System.nanoTime();
+            Replica longestDown = null;
+            for (Replica r : replicas) {
+                if (r == avoid) {
+                    continue;
+                } else if (r.healthy) {
+                    if (choice == null || better(r, choice)) {
+                        choice = r;
+                    }
+                } else if (now - r.downSince > retryNanos && ! r.trial) {
+                    // Let a single trial query through
+                    r.trial = true;
+                    choice = r;
+                    break;
+                } else if (longestDown == null || r.downSince < longestDown.downSince) {
+                    longestDown = r;
+                }
+            }
+            if (choice == null) {
+                choice = (avoid != null && (avoid.healthy || longestDown == null)) ? avoid : longestDown;
+            }
+        }
+        choice.outstanding++;
+        choice.queries++;
+        return choice;
+    }
+
+    protected boolean better(Replica a, Replica b) {
+        if (routing == Routing.LATENCY) {
+            double sa = (a.outstanding + 1) * Math.max(a.latency, 1.0);
+            double sb = (b.outstanding + 1) * Math.max(b.latency, 1.0);
+            return sa < sb;
+        }
+        if (a.outstanding != b.outstanding) {
+            return a.outstanding < b.outstanding;
+        }
+        return a.latency < b.latency;
+    }
+
+    /**
+     * Record the outcome of a query
+     * @param replica the replica returned by acquire
+     * @param success false if the query failed in a way that suggests a problem with the endpoint
+     * @param elapsedNanos time the query took, negative if the query was abandoned and the time is not meaningful
+     */
+    public synchronized void release(Replica replica, boolean success, long elapsedNanos) {
+        replica.outstanding--;
+        replica.trial = false;
+        if (success) {
+            if (elapsedNanos >= 0) {
+                double ms = elapsedNanos / 1e6;
+                replica.latency = replica.latency == 0 ? ms : replica.latency + EWMA_WEIGHT * (ms - replica.latency);
+            }
+            replica.consecutiveFailures = 0;
+            if ( ! replica.healthy ) {
+                restore(replica);
+            }
+        } else {
+            replica.failures++;
+            replica.consecutiveFailures++;
+            if (replica.healthy && replicas.size() > 1 && replica.consecutiveFailures >= failureThreshold) {
+                log.warn("Removing replica " + replica.url + " from rotation after " + replica.consecutiveFailures + " failures");
+                replica.healthy = false;
+            }
+            if ( ! replica.healthy ) {
+                replica.downSince = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Return a replica picked by acquire for a query which was never sent,
+     * without recording any outcome
+     */
+    public synchronized void cancel(Replica replica) {
+        replica.outstanding--;
+        replica.queries--;
+        replica.trial = false;
+    }
+
+    protected void restore(Replica replica) {
+        log.info("Replica " + replica.url + " restored to rotation");
+        replica.healthy = true;
+        replica.consecutiveFailures = 0;
+    }
+
+    /**
+     * Send a trial query to each replica which is out of rotation,
+     * restoring those which respond.
+     */
+    public void checkHealth() {
+        for (Replica r : replicas) {
+            if ( ! r.healthy && probe(r.url) ) {
+                synchronized (this) {
+                    restore(r);
+                }
+            }
+        }
+    }
+
+    protected boolean probe(String url) {
+        QueryExecution qexec = QueryExecutionFactory.sparqlService(url, PROBE_QUERY);
+        try {
+            ((QueryEngineHTTP)qexec).setTimeout(PROBE_TIMEOUT, PROBE_TIMEOUT);
+            qexec.execAsk();
+            return true;
+        } catch (Exception e) {
+            log.debug("Health check of " + url + " failed: " + e);
+            return false;
+        } finally {
+            qexec.close();
+        }
+    }
+
+    /**
+     * State of one query endpoint. Fields are guarded by the owning ReplicaSet.
+     */
+    public static class Replica {
+        protected final String url;
+        protected int outstanding = 0;
+        protected double latency = 0;
+        protected boolean healthy = true;
+        protected boolean trial = false;
+        protected long downSince;
+        protected int consecutiveFailures = 0;
+        protected long queries = 0;
+        protected long failures = 0;
+
+        public Replica(String url) {
+            this.url = url;
+        }
+
+        public String getURL() {
+            return url;
+        }
+
+        /** Number of queries currently running against this replica */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /** Running average of query response time in milliseconds */
+        public double getLatency() {
+            return latency;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public long getQueryCount() {
+            return queries;
+        }
+
+        public long getFailureCount() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+}
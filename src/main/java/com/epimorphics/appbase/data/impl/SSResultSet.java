@@ -10,6 +10,7 @@
 package com.epimorphics.appbase.data.impl;
 
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import com.epimorphics.appbase.data.ClosableResultSet;
 import com.hp.hpl.jena.query.QueryExecution;
@@ -30,7 +31,26 @@ public class SSResultSet implements ClosableResultSet {
     public SSResultSet(BaseSparqlSource source, String queryString) {
         this.source = source;
         qexec = source.start(queryString);
-        results =  qexec.execSelect();
+        try {
+            source.prepare(qexec, 0);
+            results =  qexec.execSelect();
+        } catch (RuntimeException e) {
+            source.failed(qexec, e);
+            doClose();
+            throw e;
+        }
+    }
+
+    /**
+     * A failure while reading the results is a failure of the query,
+     * report it to the source before releasing the query execution.
+     */
+    protected RuntimeException failed(RuntimeException e) {
+        if (source != null && ! (e instanceof NoSuchElementException)) {
+            source.failed(qexec, e);
+            doClose();
+        }
+        return e;
     }
 
     protected void doClose() {
@@ -42,7 +62,16 @@ public class SSResultSet implements ClosableResultSet {
     
     @Override
     public boolean hasNext() {
-        boolean hasnext = results.hasNext();
+        if (source == null) {
+            // Already closed, the query execution can no longer be read
+            return false;
+        }
+        boolean hasnext;
+        try {
+            hasnext = results.hasNext();
+        } catch (RuntimeException e) {
+            throw failed(e);
+        }
         if (!hasnext) {
             doClose();
         }
@@ -51,17 +80,29 @@ public class SSResultSet implements ClosableResultSet {
 
     @Override
     public QuerySolution next() {
-        return results.next();
+        try {
+            return results.next();
+        } catch (RuntimeException e) {
+            throw failed(e);
+        }
     }
 
     @Override
     public QuerySolution nextSolution() {
-        return results.nextSolution();
+        try {
+            return results.nextSolution();
+        } catch (RuntimeException e) {
+            throw failed(e);
+        }
     }
 
     @Override
     public Binding nextBinding() {
-        return results.nextBinding();
+        try {
+            return results.nextBinding();
+        } catch (RuntimeException e) {
+            throw failed(e);
+        }
     }
 
     @Override
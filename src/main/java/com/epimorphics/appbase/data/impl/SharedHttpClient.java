@@ -0,0 +1,279 @@
+/******************************************************************
+ * File:        SharedHttpClient.java
+ * Created by:  Dave Reynolds
+ * Created on:  19 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.ClientParamsStack;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.jena.riot.web.HttpOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.appbase.core.TimerManager;
+
+/**
+ * A pooled, keep-alive, HTTP client shared by all remote sparql sources.
+ * <p>
+ * Jena issues queries, updates and graph store requests through HttpOp which,
+ * unless given a default client, creates a new client and so a new
+ * connection for each request. Under load that means thousands of short lived
+ * connections and exhaustion of local ports in TIME_WAIT. Installing this
+ * client as the HttpOp default means connections to each endpoint are
+ * reused. Since the HttpOp default is global the pool is shared, each
+ * source registers its own endpoints with their connection limit, timeouts
+ * and whether connections to them should be reused at all. Requests to an
+ * endpoint pick up its settings, so one source's timeouts don't leak into another's.
+ * </p>
+ * <p>
+ * The idle connection keep-alive time is necessarily shared. The first
+ * value set is used and any different value is ignored with a warning.
+ * </p>
+ * <p>
+ * The pool is created when the first source starts and is released
+ * when the last one shuts down.
+ * </p>
+ */
+public class SharedHttpClient {
+    static Logger log = LoggerFactory.getLogger(SharedHttpClient.class);
+
+    public static final int DEFAULT_MAX_TOTAL = 200;
+    public static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+    public static final long IDLE_CHECK_INTERVAL = 30 * 1000;
+
+    protected static SharedHttpClient instance;
+    protected static int users = 0;
+
+    protected PoolingClientConnectionManager connectionManager;
+    protected DefaultHttpClient client;
+    protected volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+    protected boolean keepAliveSet = false;
+    protected ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    protected ScheduledFuture<?> idleReaper;
+
+    /**
+     * Return the shared client, installing it as the HttpOp default if
+     * this is the first use. Each call should be paired with a call to release.
+     */
+    public static synchronized SharedHttpClient acquire() {
+        if (instance == null) {
+            instance = new SharedHttpClient();
+            HttpOp.setDefaultHttpClient(instance.client);
+        }
+        users++;
+        return instance;
+    }
+
+    /**
+     * Release a use of the shared client. When there are no more users
+     * the pooled connections are closed and HttpOp reverts to its default behaviour.
+     */
+    public static synchronized void release() {
+        if (instance != null && --users <= 0) {
+            HttpOp.setDefaultHttpClient(null);
+            instance.close();
+            instance = null;
+            users = 0;
+        }
+    }
+
+    protected SharedHttpClient() {
+        connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(DEFAULT_MAX_TOTAL);
+        client = new EndpointHttpClient(connectionManager);
+        client.setKeepAliveStrategy(new KeepAliveStrategy());
+        idleReaper = TimerManager.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+            }
+        }, IDLE_CHECK_INTERVAL, IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the maximum number of concurrent connections to the host of the given URL
+     */
+    public void setMaxConnections(String url, int max) {
+        if (url == null) return;
+        URI uri = URI.create(url);
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equals(uri.getScheme()) ? 443 : 80;
+        }
+        HttpRoute route = new HttpRoute( new HttpHost(uri.getHost(), port, uri.getScheme()) );
+        if (max > connectionManager.getMaxPerRoute(route)) {
+            connectionManager.setMaxPerRoute(route, max);
+            // Make sure the overall limit doesn't undercut the per-route one
+            connectionManager.setMaxTotal( Math.max(connectionManager.getMaxTotal(), max) );
+        }
+    }
+
+    /**
+     * Set how long (in milliseconds) an idle connection will be retained,
+     * if the server does not say otherwise. Applies to all routes so
+     * only the first setting is used, a conflicting one is logged and ignored.
+     */
+    public synchronized void setKeepAlive(long keepAlive) {
+        if ( ! keepAliveSet ) {
+            this.keepAlive = keepAlive;
+            keepAliveSet = true;
+        } else if (keepAlive != this.keepAlive) {
+            log.warn("Ignoring keepAlive of " + keepAlive + "ms, shared HTTP connections already use " + this.keepAlive + "ms");
+        }
+    }
+
+    /**
+     * Set the connect and read timeouts, in milliseconds, 0 for no timeout,
+     * for requests to the given endpoint. These apply to all requests to it, including
+     * updates and graph store requests which have no per-request timeout settings.
+     * If pooled is false connections to the endpoint are closed after each request.
+     * An endpoint can only be configured once, conflicting settings are logged and ignored.
+     */
+    public void setEndpoint(String url, long connectTimeout, long readTimeout, boolean pooled) {
+        if (url == null) return;
+        Endpoint endpoint = new Endpoint(connectTimeout, readTimeout, pooled);
+        Endpoint existing = endpoints.putIfAbsent(endpointKey(url), endpoint);
+        if (existing != null && ! existing.equals(endpoint)) {
+            log.warn("Ignoring conflicting connection settings for " + url + ", already configured by another source");
+        }
+    }
+
+    protected Endpoint getEndpoint(HttpRequest request) {
+        if (request instanceof RequestWrapper) {
+            request = ((RequestWrapper)request).getOriginal();
+        }
+        if (request instanceof HttpUriRequest) {
+            URI uri = ((HttpUriRequest)request).getURI();
+            if (uri.isAbsolute()) {
+                return endpoints.get( endpointKey(uri) );
+            }
+        }
+        return null;
+    }
+
+    // Graph store and query requests add parameters to the endpoint URL, so ignore those
+    protected static String endpointKey(String url) {
+        return endpointKey( URI.create(url) );
+    }
+
+    protected static String endpointKey(URI uri) {
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equals(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port + uri.getRawPath();
+    }
+
+    public PoolingClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    protected void close() {
+        idleReaper.cancel(false);
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Connection settings for one endpoint
+     */
+    protected static class Endpoint {
+        protected final long connectTimeout;
+        protected final long readTimeout;
+        protected final boolean pooled;
+        protected final HttpParams params = new BasicHttpParams();
+
+        public Endpoint(long connectTimeout, long readTimeout, boolean pooled) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.pooled = pooled;
+            HttpConnectionParams.setConnectionTimeout(params, (int)connectTimeout);
+            HttpConnectionParams.setSoTimeout(params, (int)readTimeout);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Endpoint) {
+                Endpoint e = (Endpoint)other;
+                return connectTimeout == e.connectTimeout && readTimeout == e.readTimeout && pooled == e.pooled;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(connectTimeout * 31 + readTimeout) * 2 + (pooled ? 1 : 0);
+        }
+    }
+
+    /**
+     * Client which layers the settings for the target endpoint, if any, between
+     * the client defaults and those of the request itself
+     */
+    protected class EndpointHttpClient extends DefaultHttpClient {
+
+        public EndpointHttpClient(PoolingClientConnectionManager connectionManager) {
+            super(connectionManager, new BasicHttpParams());
+        }
+
+        @Override
+        protected HttpParams determineParams(HttpRequest request) {
+            Endpoint endpoint = getEndpoint(request);
+            if (endpoint == null) {
+                return super.determineParams(request);
+            }
+            return new ClientParamsStack(null, new DefaultedHttpParams(endpoint.params, getParams()), request.getParams(), null);
+        }
+
+        @Override
+        protected ConnectionReuseStrategy createConnectionReuseStrategy() {
+            final ConnectionReuseStrategy base = super.createConnectionReuseStrategy();
+            return new ConnectionReuseStrategy() {
+                @Override
+                public boolean keepAlive(HttpResponse response, HttpContext context) {
+                    Endpoint endpoint = getEndpoint( (HttpRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST) );
+                    if (endpoint != null && ! endpoint.pooled) {
+                        return false;
+                    }
+                    return base.keepAlive(response, context);
+                }
+            };
+        }
+    }
+
+    protected class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        protected ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = serverStrategy.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAlive;
+        }
+    }
+}
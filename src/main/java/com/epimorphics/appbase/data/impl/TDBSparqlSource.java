@@ -11,24 +11,33 @@ package com.epimorphics.appbase.data.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jena.query.text.EntityDefinition;
 import org.apache.jena.query.text.TextDatasetFactory;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.RequestScopedSource;
 import com.epimorphics.appbase.data.SparqlSource;
 import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.DatasetAccessor;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
 import com.hp.hpl.jena.tdb.TDB;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.update.GraphStore;
@@ -40,17 +49,36 @@ import com.hp.hpl.jena.vocabulary.RDFS;
 /**
  * A Sparql source which provides access to a TDB-based persistent
  * data store with an optional jena-text index.
+ * <p>
+ * Each query runs in a read transaction. TDB binds transactions to the
+ * calling thread so the dataset can be shared between threads, and queries
+ * made while another query on the same thread is still open (e.g. a streamed
+ * select) share its transaction. If requestTransactions is set then all the
+ * queries made on a thread during a render (see WSource.startRequest) share
+ * a single read transaction, which saves the cost of a transaction per query
+ * and means the page sees a consistent snapshot of the data. An update made
+ * during the request ends that transaction, later queries see the update.
+ * Within such a request the chunks of a large describeEach are described in
+ * turn on the calling thread, so they share the snapshot. The async calls
+ * (selectAsync etc.) still run on the source's query threads, each in its own
+ * transaction, so they may see data newer than the rest of the request.
+ * </p>
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
-public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
+public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource, RequestScopedSource {
+    static Logger log = LoggerFactory.getLogger( TDBSparqlSource.class );
+    
     protected File tdbDir;
     protected File textIndex;      
     protected String indexSpec = null;
-    protected Dataset dataset;  // TODO shoudl this be a thread local?
+    protected Dataset dataset;  // Shared, TDB binds transactions to the calling thread
     protected boolean isUnionDefault;
     protected GraphStore graphStore;
     protected DatasetAccessor accessor;
+    protected boolean requestTransactions = false;
+    protected final ThreadLocal<ReadState> readState = new ThreadLocal<>();
+    protected final AtomicLong transactions = new AtomicLong();
     
     public void setLocation(String loc) {
         tdbDir = asFile(loc);
@@ -81,6 +109,21 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
         isUnionDefault = flag;
     }
     
+    /**
+     * Set to true to share one read transaction between all the queries
+     * made on a thread during a request
+     */
+    public void setRequestTransactions(boolean flag) {
+        requestTransactions = flag;
+    }
+    
+    /**
+     * Number of read transactions started, for monitoring
+     */
+    public long getTransactionCount() {
+        return transactions.get();
+    }
+    
     @Override
     public void startup(App app) {
         super.startup(app);
@@ -109,26 +152,166 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
     
     @Override
     protected QueryExecution start(String queryString) {
-        Query query = QueryFactory.create(queryString) ;
-        QueryExecution qexec = QueryExecutionFactory.create(query, dataset) ;
+        return start(QueryFactory.create(queryString), null);
+    }
+    
+    @Override
+    protected QueryExecution startWithBindings(String queryString, QuerySolution bindings) {
+        return start(parse(queryString), bindings);
+    }
+    
+    protected QueryExecution start(Query query, QuerySolution bindings) {
+        QueryExecution qexec = QueryExecutionFactory.create(query, dataset, bindings) ;
         if (isUnionDefault) {
             qexec.getContext().set(TDB.symUnionDefaultGraph, true) ;
         }
-        dataset.begin(ReadWrite.READ);
+        beginRead();
         return qexec;
     }
     
     @Override
     protected void finish(QueryExecution qexec) {
-        qexec.close() ;
-        dataset.end();
+        try {
+            qexec.close() ;
+        } finally {
+            endRead();
+        }
+    }
+    
+    @Override
+    public void beginRequest() {
+        if (requestTransactions && readState.get() == null) {
+            ReadState state = new ReadState();
+            state.requestScoped = true;
+            readState.set(state);
+        }
+    }
+    
+    @Override
+    public void endRequest() {
+        ReadState state = readState.get();
+        if (state != null && state.requestScoped) {
+            if (state.depth > 0) {
+                log.warn("Request ended with queries still open on " + getName());
+            }
+            readState.remove();
+            if (state.active) {
+                dataset.end();
+            }
+        }
+    }
+    
+    /**
+     * Describe all the chunks on this thread if it is within a request
+     * transaction, chunks run on the query threads would each see their own snapshot.
+     */
+    @Override
+    public Graph[] describeEach(String... uris) {
+        ReadState state = readState.get();
+        if (state == null || ! state.requestScoped) {
+            return super.describeEach(uris);
+        }
+        Graph[] graphs = new Graph[ uris.length ];
+        int offset = 0;
+        for (String[] chunk : chunk(uris)) {
+            Graph[] chunkGraphs = describeChunk(chunk);
+            System.arraycopy(chunkGraphs, 0, graphs, offset, chunkGraphs.length);
+            offset += chunkGraphs.length;
+        }
+        return graphs;
+    }
+    
+    /**
+     * Join this thread's read transaction, starting one if needed.
+     * Must be followed by a call to endRead.
+     */
+    protected void beginRead() {
+        ReadState state = readState.get();
+        if (state == null) {
+            state = new ReadState();
+            readState.set(state);
+        }
+        if ( ! state.active ) {
+            dataset.begin(ReadWrite.READ);
+            transactions.incrementAndGet();
+            state.active = true;
+        }
+        state.depth++;
+    }
+    
+    /**
+     * Leave this thread's read transaction, ending it if nothing
+     * else (open queries or the request) still needs it
+     */
+    protected void endRead() {
+        ReadState state = readState.get();
+        if (state == null) return;
+        state.depth--;
+        if (state.depth <= 0 && ! state.requestScoped) {
+            readState.remove();
+            if (state.active) {
+                dataset.end();
+            }
+        }
+    }
+    
+    /**
+     * Start a write transaction. A thread can't hold a read and a write
+     * transaction at once so any idle request transaction is ended first,
+     * a later query will start a new one which sees the write.
+     */
+    protected void beginWrite() {
+        ReadState state = readState.get();
+        if (state != null && state.active) {
+            if (state.depth > 0) {
+                throw new EpiException("Can't update " + getName() + " while a query on the same thread is still open");
+            }
+            state.active = false;
+            dataset.end();
+        }
+        dataset.begin(ReadWrite.WRITE);
+    }
+    
+    /**
+     * Read transaction state of a thread
+     */
+    protected static class ReadState {
+        protected boolean requestScoped = false;
+        protected boolean active = false;
+        protected int depth = 0;
     }
 
     @Override
     public void update(UpdateRequest update) {
-        dataset.begin(ReadWrite.WRITE);
-        UpdateExecutionFactory.create(update, getGraphStore()).execute();        
-        dataset.commit();
+        beginWrite();
+        try {
+            UpdateExecutionFactory.create(update, getGraphStore()).execute();        
+            dataset.commit();
+        } finally {
+            dataset.end();
+            incrementGeneration();
+        }
+    }
+
+    /**
+     * Add a batch of triples to a graph in a single write transaction.
+     * The triples go straight into the dataset, without the intermediate
+     * model needed to go through the accessor, used for bulk loading.
+     * This does not change the source generation, since a load is made of
+     * many batches the caller should call incrementGeneration once it is done.
+     */
+    public void addTriples(String graphURI, Collection<Triple> triples) {
+        Node graph = NodeFactory.createURI(graphURI);
+        beginWrite();
+        try {
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            for (Triple t : triples) {
+                dsg.add(graph, t.getSubject(), t.getPredicate(), t.getObject());
+            }
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
     }
 
     @Override
@@ -140,7 +323,22 @@ public class TDBSparqlSource extends BaseSparqlSource implements SparqlSource {
     @Override
     public DatasetAccessor getAccessor() {
         if (accessor == null) {
-            accessor = new TransactionalDatasetAccessor(dataset);
+            accessor = new GenerationTrackingAccessor( new TransactionalDatasetAccessor(dataset) {
+                @Override
+                protected void beginRead() {
+                    TDBSparqlSource.this.beginRead();
+                }
+                
+                @Override
+                protected void endRead() {
+                    TDBSparqlSource.this.endRead();
+                }
+                
+                @Override
+                protected void beginWrite() {
+                    TDBSparqlSource.this.beginWrite();
+                }
+            }, this );
         }
         return accessor;
     }
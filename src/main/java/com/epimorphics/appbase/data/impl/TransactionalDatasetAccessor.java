@@ -30,103 +30,123 @@ public class TransactionalDatasetAccessor implements DatasetAccessor {
         this.wrapped = DatasetAccessorFactory.create(dataset);
     }
 
+    protected void beginRead() {
+        dataset.begin(ReadWrite.READ);
+    }
+
+    protected void endRead() {
+        dataset.end();
+    }
+
+    protected void beginWrite() {
+        dataset.begin(ReadWrite.WRITE);
+    }
+
+    protected void commit() {
+        dataset.commit();
+    }
+
+    protected void endWrite() {
+        dataset.end();
+    }
+
     @Override
     public Model getModel() {
-        dataset.begin(ReadWrite.READ);
+        beginRead();
         try {
             Model model = ModelFactory.createDefaultModel();
             model.add( wrapped.getModel() );
             return model;
         } finally {
-            dataset.end();
+            endRead();
         }
     }
 
     @Override
     public Model getModel(String graphUri) {
-        dataset.begin(ReadWrite.READ);
+        beginRead();
         try {
             Model model = ModelFactory.createDefaultModel();
             model.add( wrapped.getModel(graphUri) );
             return model;
         } finally {
-            dataset.end();
+            endRead();
         }
     }
 
     @Override
     public boolean containsModel(String graphURI) {
-        dataset.begin(ReadWrite.READ);
+        beginRead();
         try {
             return wrapped.containsModel(graphURI);
         } finally {
-            dataset.end();
+            endRead();
         }
     }
 
     @Override
     public void putModel(Model data) {
-        dataset.begin(ReadWrite.WRITE);                 
+        beginWrite();
         try {
             wrapped.putModel(data);
-            dataset.commit();
+            commit();
         } finally {
-            dataset.end();
+            endWrite();
         }
     }
 
     @Override
     public void putModel(String graphUri, Model data) {
-        dataset.begin(ReadWrite.WRITE);                 
+        beginWrite();
         try {
             wrapped.putModel(graphUri, data);
-            dataset.commit();
+            commit();
         } finally {
-            dataset.end();
+            endWrite();
         }
     }
 
     @Override
     public void deleteDefault() {
-        dataset.begin(ReadWrite.WRITE);                 
+        beginWrite();
         try {
             wrapped.deleteDefault();
-            dataset.commit();
+            commit();
         } finally {
-            dataset.end();
+            endWrite();
         }
     }
 
     @Override
     public void deleteModel(String graphUri) {
-        dataset.begin(ReadWrite.WRITE);                 
+        beginWrite();
         try {
             wrapped.deleteModel(graphUri);
-            dataset.commit();
+            commit();
         } finally {
-            dataset.end();
+            endWrite();
         }
     }
 
     @Override
     public void add(Model data) {
-        dataset.begin(ReadWrite.WRITE);                 
+        beginWrite();
         try {
             wrapped.add(data);
-            dataset.commit();
+            commit();
         } finally {
-            dataset.end();
+            endWrite();
         }
     }
 
     @Override
     public void add(String graphUri, Model data) {
-        dataset.begin(ReadWrite.WRITE);                 
+        beginWrite();
         try {
             wrapped.add(graphUri, data);
-            dataset.commit();
+            commit();
         } finally {
-            dataset.end();
+            endWrite();
         }
     }
     
@@ -0,0 +1,112 @@
+/******************************************************************
+ * File:        WResultSetStream.java
+ * Created by:  Dave Reynolds
+ * Created on:  20 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data.impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.epimorphics.appbase.data.ClosableResultSet;
+import com.epimorphics.appbase.data.WQuerySolution;
+import com.epimorphics.appbase.data.WResultSet;
+import com.epimorphics.appbase.data.WSource;
+import com.epimorphics.util.EpiException;
+
+/**
+ * Implementation of WResultSet which streams rows from an open query,
+ * nothing is buffered so memory use is independent of the size of the results.
+ * Rows are only read from the source as they are asked for.
+ * <p>
+ * The results can only be iterated over once. The underlying query
+ * (and any lock, transaction or connection it holds) is released as soon as the
+ * last row has been read, or when close is called. Since a source may hold
+ * a thread-bound lock the results should be consumed on the thread which
+ * created them.
+ * </p>
+ *
+ * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
+ */
+public class WResultSetStream implements Iterable<WQuerySolution>, Iterator<WQuerySolution>, WResultSet {
+    protected ClosableResultSet results;
+    protected WSource source;
+    protected List<String> varnames;
+    protected boolean closed = false;
+
+    public WResultSetStream(ClosableResultSet results, WSource source) {
+        this.results = results;
+        this.source = source;
+        this.varnames = results.getResultVars();
+    }
+
+    @Override
+    public List<String> getResultVars() {
+        return varnames;
+    }
+
+    @Override
+    public Iterator<WQuerySolution> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (results.hasNext()) {
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public WQuerySolution next() {
+        if ( ! hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        return new WQuerySolution(source, results.nextBinding());
+    }
+
+    @Override
+    public void remove() {
+        throw new EpiException("Remove not implemented on result sets");
+    }
+
+    /**
+     * Release the underlying query. Safe to call more than once.
+     */
+    public void close() {
+        if ( ! closed ) {
+            closed = true;
+            results.close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Materialize the remaining rows and release the query.
+     */
+    @Override
+    public WResultSet copy() {
+        if (closed) {
+            throw new EpiException("Streamed results have already been consumed");
+        }
+        try {
+            return new WResultSetMaterialized(results, source);
+        } finally {
+            close();
+        }
+    }
+
+}
@@ -16,6 +16,7 @@ import java.util.Collections;
 import org.apache.jena.riot.RDFDataMgr;
 
 import com.epimorphics.appbase.data.SparqlSource;
+import com.epimorphics.appbase.data.impl.BulkLoader;
 import com.epimorphics.util.EpiException;
 import com.hp.hpl.jena.query.DatasetAccessor;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -24,15 +25,49 @@ import com.hp.hpl.jena.rdf.model.Model;
  * Monitors a directory of RDF files, loading each into a given SparqlSource as 
  * a separate graph with the graph URI "file:<filename>". Particularly useful
  * when the underlying store is a TDB store with default union set.
+ * <p>
+ * By default each file is parsed into memory and then replaces its graph in
+ * one step. If bulkLoad is set then files are instead streamed into the store
+ * in chunks (see BulkLoader), which needs little memory and is much faster for
+ * large files. For an updateable source the chunks go into a staging graph which
+ * replaces the real one once the file has been read, so a file which fails to parse
+ * leaves the old graph in place, but with a union default graph queries can see some
+ * of the new triples during the load.
+ * </p>
  */
 public class DatasetMonitor extends ConfigMonitor<DatasetMonitor.MonitoredGraph> {
     protected SparqlSource source;
     protected DatasetAccessor accessor;
+    protected boolean bulkLoad = false;
+    protected int bulkChunkSize = BulkLoader.DEFAULT_CHUNK_SIZE;
+    protected BulkLoader loader;
     
     public void setSparqlSource(SparqlSource source) {
         this.source = source;
     }
     
+    /**
+     * Set to true to stream files into the store rather than loading each into memory first
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+    
+    /**
+     * Number of triples committed at a time when bulk loading
+     */
+    public void setBulkChunkSize(long size) {
+        this.bulkChunkSize = (int)size;
+    }
+    
+    /**
+     * The loader used for bulk loads, giving the progress and rate of the
+     * current or last load, or null if there has been no bulk load
+     */
+    public BulkLoader getLoader() {
+        return loader;
+    }
+    
     public class MonitoredGraph implements ConfigInstance {
         File file;
 
@@ -58,8 +93,17 @@ public class DatasetMonitor extends ConfigMonitor<DatasetMonitor.MonitoredGraph>
     @Override
     protected void doAddEntry(MonitoredGraph entry) {
         super.doAddEntry(entry);
-        Model model = RDFDataMgr.loadModel( entry.getFilepath() );
-        getAccessor().putModel(entry.getName(), model);
+        if (bulkLoad) {
+            if (loader == null) {
+                getAccessor();      // Checks a source is configured
+                loader = new BulkLoader(source);
+                loader.setChunkSize(bulkChunkSize);
+            }
+            loader.load(entry.getName(), entry.getFilepath());
+        } else {
+            Model model = RDFDataMgr.loadModel( entry.getFilepath() );
+            getAccessor().putModel(entry.getName(), model);
+        }
     }
 
     protected void doRemoveEntry(MonitoredGraph entry) {
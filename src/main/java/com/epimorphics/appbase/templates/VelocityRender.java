@@ -50,6 +50,7 @@ import org.slf4j.LoggerFactory;
 
 import com.epimorphics.appbase.core.App;
 import com.epimorphics.appbase.core.ComponentBase;
+import com.epimorphics.appbase.data.WSource;
 import com.epimorphics.util.EpiException;
 
 /**
@@ -213,10 +214,13 @@ public class VelocityRender extends ComponentBase {
            vc.put( "request", request );
            vc.put( "response", response );
 
+           startRequest();
            template.merge(vc, out);
        } catch (Exception e) {
            log.error("Exception executing template: " + templateName, e);
            throw new EpiException(e);
+       } finally {
+           endRequest(templateName);
        }
        out.close();
     }
@@ -253,13 +257,37 @@ public class VelocityRender extends ComponentBase {
             public void write(OutputStream output) throws IOException,
                     WebApplicationException {
                 OutputStreamWriter writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
-                template.merge(vc, writer);
+                startRequest();
+                try {
+                    template.merge(vc, writer);
+                } finally {
+                    endRequest(template.getName());
+                }
                 writer.flush();
             }
         };
     }
 
 
+    /**
+     * Signal start of a render to the data sources so they can scope
+     * label batching, query counts and streamed results to the request
+     */
+    protected void startRequest() {
+        for (WSource source : app.getAll(WSource.class)) {
+            source.startRequest();
+        }
+    }
+
+    protected void endRequest(String templateName) {
+        for (WSource source : app.getAll(WSource.class)) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Render of %s issued %d queries on %s", templateName, source.getRequestQueryCount(), source.getName()));
+            }
+            source.endRequest();
+        }
+    }
+
     protected VelocityContext buildContext(String root, Map<String, Object> env) {
         VelocityContext vc = new VelocityContext();
         if (root.equals("/")) {
@@ -0,0 +1,296 @@
+/******************************************************************
+ * File:        BoundedCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  6 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size bounded cache which is safe for concurrent use.
+ * The cache can be bounded by the number of entries, or by total
+ * weight as measured by a supplied Weigher, or both. Entries may also
+ * be given a time to live after which they are treated as absent.
+ * <p>
+ * Lookups are lock free, each hit just records an access time on the entry.
+ * When a put takes the cache beyond its bound that writer trims it back
+ * to below the bound (by default to 90% of the limit) by discarding the least
+ * recently accessed entries, so the cost is amortized across many insertions.
+ * Other writers which find the cache over its bound wait for the trim to finish,
+ * so the bound is only exceeded while puts are in progress. Readers never block.
+ * </p>
+ * <p>
+ * Eviction is approximate LRU. Rather than sort every entry, the access
+ * times of a random sample of entries give a cut off below which entries are discarded.
+ * </p>
+ */
+public class BoundedCache<K, V> {
+    protected static final float DEFAULT_TRIM_FRACTION = 0.9f;
+
+    /** Number of entries whose access times are used to pick the eviction cut off */
+    protected static final int EVICTION_SAMPLE = 256;
+
+    protected final ConcurrentHashMap<K, CacheEntry<V>> map;
+    protected final AtomicInteger size = new AtomicInteger();
+    protected final AtomicLong weight = new AtomicLong();
+    protected final AtomicLong evictions = new AtomicLong();
+    protected final ReentrantLock evictionLock = new ReentrantLock();
+    protected final int maxSize;
+    protected final int trimSize;
+    protected final long maxWeight;
+    protected final long trimWeight;
+    protected final Weigher<V> weigher;
+    protected volatile long ttlNanos = Long.MAX_VALUE;
+
+    /**
+     * Measures the cost of retaining a value in the cache
+     */
+    public interface Weigher<V> {
+        public long weigh(V value);
+    }
+
+    public BoundedCache(int maxSize) {
+        this(maxSize, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Construct a cache bounded by weight as well as by number of entries.
+     * @param maxSize the maximum number of entries to retain
+     * @param maxWeight the maximum total weight of entries to retain
+     * @param weigher measures the weight of each value, if null then each entry has weight 1
+     */
+    public BoundedCache(int maxSize, long maxWeight, Weigher<V> weigher) {
+        this(maxSize, maxWeight, weigher, DEFAULT_TRIM_FRACTION);
+    }
+
+    /**
+     * Construct a cache.
+     * @param maxSize the maximum number of entries to retain
+     * @param maxWeight the maximum total weight of entries to retain
+     * @param weigher measures the weight of each value, if null then each entry has weight 1
+     * @param trimFraction the fraction of the limits to which the cache is reduced when a limit is exceeded
+     */
+    public BoundedCache(int maxSize, long maxWeight, Weigher<V> weigher, float trimFraction) {
+        this.maxSize = maxSize;
+        this.trimSize = (int) (maxSize * trimFraction);
+        this.maxWeight = maxWeight;
+        this.trimWeight = maxWeight == Long.MAX_VALUE ? maxWeight : (long) (maxWeight * trimFraction);
+        this.weigher = weigher;
+        int concurrency = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+        map = new ConcurrentHashMap<>(Math.min(maxSize, 1 << 16), 0.75f, concurrency);
+    }
+
+    /**
+     * Set a time to live for entries, measured from when they were added
+     * to the cache. Expired entries are discarded lazily when next accessed
+     * (or when evicted). A non-positive value means entries don't expire.
+     */
+    public void setTimeToLive(long duration, TimeUnit unit) {
+        ttlNanos = duration <= 0 ? Long.MAX_VALUE : unit.toNanos(duration);
+    }
+
+    /**
+     * Return the cached value for the key, or null if there is none
+     */
+    public V get(K key) {
+        CacheEntry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.touch();
+        if (entry.lastAccess - entry.created > ttlNanos) {
+            discard(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Add or replace the cached value for the key.
+     * A value which on its own exceeds the weight limit is not cached.
+     */
+    public void put(K key, V value) {
+        long w = weigher == null ? 1 : weigher.weigh(value);
+        if (w > maxWeight) {
+            remove(key);
+            return;
+        }
+        CacheEntry<V> old = map.put(key, new CacheEntry<V>(value, w));
+        if (old == null) {
+            size.incrementAndGet();
+            weight.addAndGet(w);
+        } else {
+            weight.addAndGet(w - old.weight);
+        }
+        if (size.get() > maxSize || weight.get() > maxWeight) {
+            evict();
+        }
+    }
+
+    /**
+     * Remove any cached value for the key
+     */
+    public void remove(K key) {
+        CacheEntry<V> old = map.remove(key);
+        if (old != null) {
+            size.decrementAndGet();
+            weight.addAndGet(-old.weight);
+        }
+    }
+
+    /**
+     * Remove the given entry for the key, if it is still current.
+     */
+    protected boolean discard(K key, CacheEntry<V> entry) {
+        if (map.remove(key, entry)) {
+            size.decrementAndGet();
+            weight.addAndGet(-entry.weight);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Discard all cached values
+     */
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Current number of entries in the cache
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Current total weight of the entries in the cache.
+     * Equals the size if the cache has no weigher.
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Total number of entries discarded to keep the cache within its limits
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Trim the cache back to its target size. Only one thread will
+     * evict at a time, other writers wait for it and then check the bound again.
+     */
+    protected void evict() {
+        evictionLock.lock();
+        try {
+            if (size.get() <= maxSize && weight.get() <= maxWeight) {
+                // Another writer has already trimmed the cache
+                return;
+            }
+            long[] sample = sampleAccessTimes();
+            if (sample.length == 0) {
+                return;
+            }
+            // Start with the cut off which, going by the sample, removes just enough entries
+            double excess = Math.max(1.0 - (double)trimSize / size.get(), 1.0 - (double)trimWeight / weight.get());
+            int index = Math.max(0, (int)Math.ceil(excess * sample.length) - 1);
+            int step = Math.max(1, sample.length / 16);
+            while ( ! trimmed() ) {
+                boolean all = index >= sample.length;
+                long cutoff = all ? 0 : sample[index];
+                boolean removed = false;
+                for (Iterator<Map.Entry<K, CacheEntry<V>>> i = map.entrySet().iterator(); i.hasNext() && ! trimmed();) {
+                    Map.Entry<K, CacheEntry<V>> e = i.next();
+                    CacheEntry<V> entry = e.getValue();
+                    if ( (all || entry.lastAccess - cutoff <= 0) && discard(e.getKey(), entry) ) {
+                        evictions.incrementAndGet();
+                        removed = true;
+                    }
+                }
+                if (all && ! removed) {
+                    break;
+                }
+                // The sample underestimated the cut off, raise it
+                index += step;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    protected boolean trimmed() {
+        return size.get() <= trimSize && weight.get() <= trimWeight;
+    }
+
+    /**
+     * Return the sorted access times of a random sample of up to EVICTION_SAMPLE
+     * entries. Map order can follow insertion order, e.g. for sequential keys,
+     * so this samples the whole map rather than taking the first entries.
+     */
+    protected long[] sampleAccessTimes() {
+        long[] sample = new long[EVICTION_SAMPLE];
+        Random random = ThreadLocalRandom.current();
+        int n = 0;
+        for (CacheEntry<V> entry : map.values()) {
+            if (n < sample.length) {
+                sample[n] = entry.lastAccess;
+            } else {
+                int slot = random.nextInt(n + 1);
+                if (slot < sample.length) {
+                    sample[slot] = entry.lastAccess;
+                }
+            }
+            n++;
+        }
+        if (n < sample.length) {
+            sample = Arrays.copyOf(sample, n);
+        }
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    protected static class CacheEntry<V> {
+        protected final V value;
+        protected final long weight;
+        protected final long created;
+        protected volatile long lastAccess;
+
+        public CacheEntry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+            this.created = System.nanoTime();
+            this.lastAccess = created;
+        }
+
+        public void touch() {
+            lastAccess = System.nanoTime();
+        }
+    }
+}
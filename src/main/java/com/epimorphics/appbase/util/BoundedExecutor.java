@@ -0,0 +1,61 @@
+/******************************************************************
+ * File:        BoundedExecutor.java
+ * Created by:  Dave Reynolds
+ * Created on:  23 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors with a fixed number of daemon threads and a bounded
+ * queue. When the queue is full a task runs on the submitting thread, so
+ * a burst of work slows the caller down rather than growing without limit.
+ */
+public class BoundedExecutor {
+
+    /**
+     * Create an executor
+     * @param name prefix for the names of the worker threads
+     * @param threads number of worker threads
+     * @param queueSize number of tasks which can wait for a free thread
+     */
+    public static ExecutorService create(String name, int threads, int queueSize) {
+        return create(name, threads, queueSize, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Create an executor with a different policy for tasks submitted when
+     * the queue is full, for example an AbortPolicy for work which should
+     * be skipped rather than delay the caller
+     * @param name prefix for the names of the worker threads
+     * @param threads number of worker threads
+     * @param queueSize number of tasks which can wait for a free thread
+     * @param rejected handler for tasks which can't be queued
+     */
+    public static ExecutorService create(final String name, int threads, int queueSize, RejectedExecutionHandler rejected) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    protected AtomicInteger count = new AtomicInteger();
+                    
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, rejected);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,118 @@
+/******************************************************************
+ * File:        LatencyHistogram.java
+ * Created by:  Dave Reynolds
+ * Created on:  29 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of operation times from which percentiles can be estimated.
+ * <p>
+ * Buckets are logarithmic, four per doubling, from 0.1ms up to about 100s, so
+ * estimates are within about 20% of the true value. Recording is lock free.
+ * So that estimates follow changes in behaviour, once window samples have been
+ * recorded all counts are halved, older samples fading out.
+ * </p>
+ */
+public class LatencyHistogram {
+    public static final int DEFAULT_WINDOW = 10000;
+
+    protected static final int STEPS_PER_DOUBLING = 4;
+    protected static final int NBUCKETS = 80;
+    protected static final long MIN_NANOS = 100000;
+
+    protected static final long[] BOUNDS = new long[NBUCKETS];
+    static {
+        for (int i = 0; i < NBUCKETS; i++) {
+            BOUNDS[i] = (long)(MIN_NANOS * Math.pow(2.0, (double)i / STEPS_PER_DOUBLING));
+        }
+    }
+
+    protected final AtomicLongArray counts = new AtomicLongArray(NBUCKETS + 1);
+    protected final AtomicLong total = new AtomicLong();
+    protected final long window;
+
+    public LatencyHistogram() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public LatencyHistogram(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Record the time taken by an operation
+     */
+    public void record(long elapsedNanos) {
+        counts.incrementAndGet( bucket(elapsedNanos) );
+        if (total.incrementAndGet() >= window) {
+            decay();
+        }
+    }
+
+    protected int bucket(long nanos) {
+        if (nanos <= MIN_NANOS) return 0;
+        int i = (int)Math.ceil( STEPS_PER_DOUBLING * Math.log((double)nanos / MIN_NANOS) / Math.log(2.0) );
+        return Math.min(i, NBUCKETS);
+    }
+
+    protected synchronized void decay() {
+        if (total.get() < window) return;
+        long sum = 0;
+        for (int i = 0; i <= NBUCKETS; i++) {
+            long c = counts.get(i);
+            long halved = c / 2;
+            counts.addAndGet(i, halved - c);
+            sum += halved;
+        }
+        total.set(sum);
+    }
+
+    /**
+     * Number of samples currently contributing to the histogram
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Estimate the time (in milliseconds) within which the given percentage
+     * of operations complete, returns 0 if nothing has been recorded.
+     */
+    public double getPercentile(double percent) {
+        long[] snapshot = new long[NBUCKETS + 1];
+        long sum = 0;
+        for (int i = 0; i <= NBUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            sum += snapshot[i];
+        }
+        if (sum == 0) return 0;
+        long target = (long)Math.ceil(sum * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i <= NBUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return upperBound(i) / 1e6;
+            }
+        }
+        return upperBound(NBUCKETS) / 1e6;
+    }
+
+    protected long upperBound(int bucket) {
+        return bucket < NBUCKETS ? BOUNDS[bucket] : BOUNDS[NBUCKETS - 1] * 2;
+    }
+
+    public void reset() {
+        for (int i = 0; i <= NBUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+    }
+}
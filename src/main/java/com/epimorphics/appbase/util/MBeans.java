@@ -0,0 +1,59 @@
+/******************************************************************
+ * File:        MBeans.java
+ * Created by:  Dave Reynolds
+ * Created on:  26 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Support for registering monitoring beans with the platform MBean server.
+ */
+public class MBeans {
+    static Logger log = LoggerFactory.getLogger(MBeans.class);
+
+    public static final String DOMAIN = "com.epimorphics.appbase";
+
+    /**
+     * Register a bean under the appbase domain, returns the name it was registered under
+     * or null if it could not be registered (e.g. because the name is already taken).
+     */
+    public static ObjectName register(Object bean, String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName oname = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if ( ! server.isRegistered(oname) ) {
+                server.registerMBean(bean, oname);
+                return oname;
+            }
+        } catch (JMException e) {
+            log.warn("Could not register monitoring bean for " + name, e);
+        }
+        return null;
+    }
+
+    /**
+     * Unregister a bean, ignores a null name
+     */
+    public static void unregister(ObjectName name) {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // ignore, already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/******************************************************************
+ * File:        MappedFuture.java
+ * Created by:  Dave Reynolds
+ * Created on:  23 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future whose value is computed from the value of another Future.
+ * The mapping is applied once, on the first thread to ask for the value.
+ */
+public abstract class MappedFuture<S, T> implements Future<T> {
+    protected final Future<S> base;
+    protected boolean mapped = false;
+    protected T value;
+
+    public MappedFuture(Future<S> base) {
+        this.base = base;
+    }
+
+    /**
+     * Compute the value of this future from the base value
+     */
+    protected abstract T map(S baseValue);
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return base.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return base.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return base.isDone();
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        return mapValue( base.get() );
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return mapValue( base.get(timeout, unit) );
+    }
+
+    protected synchronized T mapValue(S baseValue) {
+        if (!mapped) {
+            value = map(baseValue);
+            mapped = true;
+        }
+        return value;
+    }
+}
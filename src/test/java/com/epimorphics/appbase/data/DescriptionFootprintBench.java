@@ -0,0 +1,142 @@
+/******************************************************************
+ * File:        DescriptionFootprintBench.java
+ * Created by:  Dave Reynolds
+ * Created on:  12 May 2014
+ * 
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import com.epimorphics.appbase.data.impl.CompactGraph;
+import com.epimorphics.vocabs.SKOS;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.mem.GraphMem;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Rough measurement of heap retained by cached label descriptions held
+ * as memory graphs versus compact graphs. Not a unit test, run by hand.
+ * <p>
+ * Sizes come from the JVM's class histogram of live objects (as jmap -histo:live),
+ * taken before and after building the descriptions, so they are exact retained
+ * sizes rather than estimates from free heap. Everything a description keeps alive
+ * is counted: the graph and its indexes, the triples, the subject and literal
+ * nodes and their strings. Only the shared predicate nodes are excluded.
+ * Needs a HotSpot JVM.
+ * </p>
+ */
+public class DescriptionFootprintBench {
+    static final int N = 50000;
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, long[]> mem = measure(false);
+        Map<String, long[]> compact = measure(true);
+        long memTotal = total(mem);
+        long compactTotal = total(compact);
+        System.out.println( String.format("GraphMem:     %,d bytes per description", memTotal / N) );
+        System.out.println( String.format("CompactGraph: %,d bytes per description", compactTotal / N) );
+        System.out.println( String.format("Reduction:    %.1fx", (double)memTotal / compactTotal) );
+        print("GraphMem", mem);
+        print("CompactGraph", compact);
+    }
+    
+    /**
+     * Build N descriptions and return the retained instances and bytes by class
+     */
+    static Map<String, long[]> measure(boolean compact) throws Exception {
+        Node[] predicates = new Node[] {RDFS.label.asNode(), SKOS.prefLabel.asNode(), SKOS.altLabel.asNode()};
+        NodeDescription[] descriptions = new NodeDescription[N];
+        // Load the classes used before taking the baseline
+        describe(predicates, 0, compact);
+        Map<String, long[]> before = histogram();
+        for (int i = 0; i < N; i++) {
+            descriptions[i] = describe(predicates, i, compact);
+        }
+        Map<String, long[]> after = histogram();
+        if (descriptions[N-1].getGraph().size() != 3) {
+            throw new IllegalStateException();
+        }
+        Map<String, long[]> retained = new HashMap<>();
+        for (Map.Entry<String, long[]> e : after.entrySet()) {
+            long[] was = before.get(e.getKey());
+            long[] diff = new long[] {e.getValue()[0], e.getValue()[1]};
+            if (was != null) {
+                diff[0] -= was[0];
+                diff[1] -= was[1];
+            }
+            if (diff[1] > 0) {
+                retained.put(e.getKey(), diff);
+            }
+        }
+        return retained;
+    }
+    
+    static NodeDescription describe(Node[] predicates, int i, boolean compact) {
+        Node n = NodeFactory.createURI("http://localhost/test/i" + i);
+        Graph g = new GraphMem();
+        g.add( new Triple(n, predicates[0], NodeFactory.createLiteral("label " + i)) );
+        g.add( new Triple(n, predicates[1], NodeFactory.createLiteral("pref label " + i, "en", false)) );
+        g.add( new Triple(n, predicates[2], NodeFactory.createLiteral("alt label " + i)) );
+        if (compact) {
+            g = CompactGraph.copyOf(g);
+        }
+        return new NodeDescription(n, g, NodeDescription.Coverage.LABEL);
+    }
+    
+    /**
+     * Live instances and bytes by class, this forces a full GC
+     */
+    static Map<String, long[]> histogram() throws Exception {
+        String histo = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                new Object[] {new String[0]}, new String[] {String[].class.getName()});
+        Map<String, long[]> counts = new HashMap<>();
+        for (String line : histo.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 4 && fields[0].endsWith(":")) {
+                counts.put(fields[3], new long[] {Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+            }
+        }
+        return counts;
+    }
+    
+    static long total(Map<String, long[]> counts) {
+        long total = 0;
+        for (long[] c : counts.values()) {
+            total += c[1];
+        }
+        return total;
+    }
+    
+    static void print(String label, final Map<String, long[]> counts) {
+        List<String> classes = new ArrayList<>( counts.keySet() );
+        Collections.sort(classes, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(counts.get(b)[1], counts.get(a)[1]);
+            }
+        });
+        System.out.println(label + ", per description:");
+        for (String c : classes) {
+            long[] count = counts.get(c);
+            if (count[1] >= N) {
+                System.out.println( String.format("  %6.2f x %4d bytes  %s", (double)count[0] / N, count[1] / N, c) );
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/******************************************************************
+ * File:        FileLoadBench.java
+ * Created by:  Dave Reynolds
+ * Created on:  6 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.FileSparqlSource;
+import com.epimorphics.util.FileUtil;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Rough comparison of FileSparqlSource startup time loading a synthetic
+ * directory of vocabulary-sized files on one thread and in parallel,
+ * with and without a text index. Not a unit test, run by hand.
+ * The parallel runs use one thread per available processor, so on a
+ * single core machine both rows time the same thing.
+ */
+public class FileLoadBench {
+    static final String TEST = "http://localhost/test/def#";
+    static final int NFILES = 48;
+    static final int NRESOURCES = 5000;     // per file, 3 triples each
+    static final int RUNS = 3;
+
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("fileloadbench").toFile();
+        try {
+            for (int i = 0; i < NFILES; i++) {
+                writeFile(new File(dir, "vocab" + i + ".ttl"), i);
+            }
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (String index : new String[]{null, "default"}) {
+                for (int threads : new int[]{1, cores}) {
+                    time(dir, threads, index);      // warm up
+                    long total = 0;
+                    for (int r = 0; r < RUNS; r++) {
+                        total += time(dir, threads, index);
+                    }
+                    System.out.println( String.format("%d files, %s, %2d threads: %,dms",
+                            NFILES, index == null ? "no index  " : "text index", threads, total / RUNS) );
+                }
+            }
+        } finally {
+            FileUtil.deleteDirectory(dir);
+        }
+    }
+
+    static long time(File dir, int threads, String index) {
+        App app = new App("file load bench");
+        FileSparqlSource source = new FileSparqlSource();
+        source.setFiles(dir.getPath());
+        source.setLoadThreads(threads);
+        if (index != null) {
+            source.setTextIndex(index);
+        }
+        app.addComponent("source", source);
+        long start = System.currentTimeMillis();
+        app.startup();
+        long elapsed = System.currentTimeMillis() - start;
+        app.shutdown();
+        return elapsed;
+    }
+
+    static void writeFile(File file, int n) throws IOException {
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write("@prefix rdfs: <" + RDFS.getURI() + "> .\n");
+            for (int i = 0; i < NRESOURCES; i++) {
+                String uri = "<" + TEST + "f" + n + "-" + i + ">";
+                out.write(uri + " rdfs:label \"label " + n + " " + i + "\"@en ;\n");
+                out.write("    rdfs:comment \"Resource " + i + " of file " + n + "\" ;\n");
+                out.write("    rdfs:seeAlso <" + TEST + "f" + n + "-" + ((i + 1) % NRESOURCES) + "> .\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
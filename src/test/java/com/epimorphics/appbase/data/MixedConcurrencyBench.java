@@ -0,0 +1,99 @@
+/******************************************************************
+ * File:        MixedConcurrencyBench.java
+ * Created by:  Dave Reynolds
+ * Created on:  3 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.DatasetSparqlSource;
+import com.epimorphics.appbase.util.LatencyHistogram;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Rough comparison of query throughput and latency for an in-memory
+ * source under a mix of queries and updates, using a plain locked dataset
+ * and a transactional one. Not a unit test, run by hand.
+ */
+public class MixedConcurrencyBench {
+    static final String TEST = "http://localhost/test/def#";
+    static final int RUN_MS = 5000;
+    static final int NRESOURCES = 10000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (boolean transactional : new boolean[]{false, true}) {
+            App app = new App("mixed concurrency bench");
+            DatasetSparqlSource source = new DatasetSparqlSource();
+            source.setTransactional(transactional);
+            app.addComponent("source", source);
+            app.startup();
+
+            Model m = ModelFactory.createDefaultModel();
+            for (int i = 0; i < NRESOURCES; i++) {
+                m.createResource(TEST + "i" + i).addProperty(RDFS.label, "label " + i);
+            }
+            source.getAccessor().putModel(m);
+
+            for (int threads : new int[]{1, 8, 32}) {
+                run(source, threads);       // warm up
+                String report = run(source, threads);
+                System.out.println( String.format("%s, %2d readers: %s", transactional ? "transactional" : "locked       ", threads, report) );
+            }
+            app.shutdown();
+        }
+    }
+
+    static String run(final SparqlSource source, int nthreads) throws InterruptedException {
+        final AtomicLong queries = new AtomicLong();
+        final AtomicLong updates = new AtomicLong();
+        final LatencyHistogram latency = new LatencyHistogram(Long.MAX_VALUE);
+        final CountDownLatch done = new CountDownLatch(nthreads + 1);
+        final long end = System.currentTimeMillis() + RUN_MS;
+        for (int t = 0; t < nthreads; t++) {
+            final int seed = t;
+            new Thread() {
+                public void run() {
+                    int i = seed;
+                    while (System.currentTimeMillis() < end) {
+                        i = (i + 7) % NRESOURCES;
+                        long start = System.nanoTime();
+                        // A scan, so each query holds the dataset for a while
+                        ResultSet rs = source.select("SELECT (COUNT(?x) AS ?n) WHERE {?x <" + RDFS.label + "> ?l FILTER(?x != <" + TEST + "i" + i + ">)}");
+                        while (rs.hasNext()) rs.next();
+                        latency.record(System.nanoTime() - start);
+                        queries.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        new Thread() {
+            public void run() {
+                int i = 0;
+                while (System.currentTimeMillis() < end) {
+                    i = (i + 13) % NRESOURCES;
+                    source.update( UpdateFactory.create(
+                            "DELETE {?x <" + RDFS.comment + "> ?c} WHERE {?x <" + RDFS.comment + "> ?c} ;\n"
+                            + "INSERT DATA {<" + TEST + "i" + i + "> <" + RDFS.comment + "> 'updated " + i + "'}") );
+                    updates.incrementAndGet();
+                }
+                done.countDown();
+            }
+        }.start();
+        done.await();
+        return String.format("%,d queries/s, %,d updates/s, query latency p50 %.1fms p99 %.1fms",
+                queries.get() * 1000 / RUN_MS, updates.get() * 1000 / RUN_MS,
+                latency.getPercentile(50), latency.getPercentile(99));
+    }
+}
@@ -0,0 +1,91 @@
+/******************************************************************
+ * File:        RemoteSourceBench.java
+ * Created by:  Dave Reynolds
+ * Created on:  19 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.RemoteSparqlSource;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Rough comparison of query latency and throughput against a remote
+ * endpoint with and without pooled connections. Not a unit test, run by hand.
+ * Assumes there is a test fuseki on 4040, as for TestRemoteSource
+ * <pre>
+ *   fuseki-server --update --mem --port=4040 /test
+ * </pre>
+ */
+public class RemoteSourceBench {
+    static final String TEST = "http://localhost/test/def#";
+    static final int RUN_MS = 5000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (boolean pooled : new boolean[]{false, true}) {
+            App app = new App("remote source bench");
+            RemoteSparqlSource source = new RemoteSparqlSource();
+            source.setEndpoint("http://localhost:4040/test/query");
+            source.setGraphEndpoint("http://localhost:4040/test/data");
+            source.setPooled(pooled);
+            app.addComponent("source", source);
+            app.startup();
+
+            Model m = ModelFactory.createDefaultModel();
+            for (int i = 0; i < 100; i++) {
+                m.createResource(TEST + "i" + i).addProperty(RDFS.label, "label " + i);
+            }
+            source.getAccessor().putModel(m);
+
+            for (int threads : new int[]{1, 8, 32}) {
+                run(source, threads);       // warm up
+                String report = run(source, threads);
+                System.out.println( String.format("%s, %2d threads: %s", pooled ? "pooled  " : "unpooled", threads, report) );
+            }
+            app.shutdown();
+        }
+    }
+
+    static String run(final SparqlSource source, int nthreads) throws InterruptedException {
+        final AtomicLong queries = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(nthreads);
+        final long end = System.currentTimeMillis() + RUN_MS;
+        for (int t = 0; t < nthreads; t++) {
+            final int seed = t;
+            new Thread() {
+                public void run() {
+                    int i = seed;
+                    while (System.currentTimeMillis() < end) {
+                        i = (i + 7) % 100;
+                        long start = System.nanoTime();
+                        try {
+                            ResultSet rs = source.select("SELECT ?l WHERE {<" + TEST + "i" + i + "> ?p ?l}");
+                            while (rs.hasNext()) rs.next();
+                            nanos.addAndGet(System.nanoTime() - start);
+                            queries.incrementAndGet();
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        long n = Math.max(1, queries.get());
+        return String.format("%,d queries/s, mean latency %.2fms, %d failures",
+                queries.get() * 1000 / RUN_MS, nanos.get() / (n * 1e6), failures.get());
+    }
+}
@@ -0,0 +1,109 @@
+/******************************************************************
+ * File:        ResultFormatBench.java
+ * Created by:  Dave Reynolds
+ * Created on:  21 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Rough comparison of the size and parse cost of the select result
+ * formats a RemoteSparqlSource can ask for, at a few result sizes.
+ * Not a unit test, run by hand.
+ */
+public class ResultFormatBench {
+    static final String TEST = "http://localhost/test/def#";
+    static final int RUNS = 10;
+
+    public static void main(String[] args) {
+        for (int rows : new int[]{100, 10000, 100000}) {
+            ResultSetRewindable results = makeResults(rows);
+            for (String format : new String[]{"xml", "json", "tsv"}) {
+                results.reset();
+                byte[] data = serialize(results, format);
+                parse(data, format);        // warm up
+                long start = System.nanoTime();
+                for (int i = 0; i < RUNS; i++) {
+                    parse(data, format);
+                }
+                double ms = (System.nanoTime() - start) / (RUNS * 1e6);
+                System.out.println( String.format("%,7d rows %-4s: %,11d bytes, %8.2fms to parse", rows, format, data.length, ms) );
+            }
+        }
+    }
+
+    static ResultSetRewindable makeResults(int rows) {
+        Model m = ModelFactory.createDefaultModel();
+        Resource type = m.createResource(TEST + "Sample");
+        for (int i = 0; i < rows; i++) {
+            m.createResource(TEST + "i" + i)
+                .addProperty(RDF.type, type)
+                .addProperty(RDFS.label, "Sample number " + i, "en")
+                .addLiteral(m.createProperty(TEST + "value"), i);
+        }
+        Dataset ds = DatasetFactory.create(m);
+        QueryExecution qexec = QueryExecutionFactory.create(
+                "SELECT * WHERE {?x a <" + TEST + "Sample>; <" + RDFS.label.getURI() + "> ?label; <" + TEST + "value> ?value}", ds);
+        try {
+            return ResultSetFactory.makeRewindable( qexec.execSelect() );
+        } finally {
+            qexec.close();
+        }
+    }
+
+    static byte[] serialize(ResultSet results, String format) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        switch (format) {
+        case "xml":
+            ResultSetFormatter.outputAsXML(out, results);
+            break;
+        case "json":
+            ResultSetFormatter.outputAsJSON(out, results);
+            break;
+        default:
+            ResultSetFormatter.outputAsTSV(out, results);
+        }
+        return out.toByteArray();
+    }
+
+    static int parse(byte[] data, String format) {
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        ResultSet results;
+        switch (format) {
+        case "xml":
+            results = ResultSetFactory.fromXML(in);
+            break;
+        case "json":
+            results = ResultSetFactory.fromJSON(in);
+            break;
+        default:
+            results = ResultSetFactory.fromTSV(in);
+        }
+        int count = 0;
+        while (results.hasNext()) {
+            results.nextBinding();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,97 @@
+/******************************************************************
+ * File:        TestAdaptiveLimiter.java
+ * Created by:  Dave Reynolds
+ * Created on:  26 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.epimorphics.appbase.data.impl.AdaptiveLimiter;
+
+public class TestAdaptiveLimiter {
+
+    @Test
+    public void testLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 4, 1000, 0, 1000);
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+        }
+        assertRefused(limiter);
+        assertEquals(1, limiter.getRejections());
+        
+        // Failures cut the limit back
+        limiter.release(false, false, 0);
+        assertEquals(3, limiter.getLimit());
+        assertRefused(limiter);
+        
+        // Quick successes while saturated raise it again
+        for (int i = 0; i < 20; i++) {
+            limiter.release(false, true, 0);
+            limiter.acquire();
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals("CLOSED", limiter.getState());
+    }
+    
+    @Test
+    public void testBreaker() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 10, 1000, 3, 100);
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire();
+            limiter.release(false, false, 0);
+        }
+        assertEquals("OPEN", limiter.getState());
+        assertRefused(limiter);
+        
+        Thread.sleep(150);
+        assertTrue( limiter.acquire() );      // the probe
+        assertEquals("HALF_OPEN", limiter.getState());
+        assertRefused(limiter);
+        limiter.release(true, true, 0);
+        assertEquals("CLOSED", limiter.getState());
+        limiter.acquire();
+        assertTrue( limiter.getInFlight() == 1 );
+    }
+    
+    @Test
+    public void testOnlyProbeCloses() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 10, 1000, 2, 100);
+        boolean slow = limiter.acquire();     // still running when the breaker opens
+        for (int i = 0; i < 2; i++) {
+            limiter.acquire();
+            limiter.release(false, false, 0);
+        }
+        assertEquals("OPEN", limiter.getState());
+        
+        Thread.sleep(150);
+        assertTrue( limiter.acquire() );
+        assertEquals("HALF_OPEN", limiter.getState());
+        // An earlier query succeeding says nothing about whether the endpoint has recovered
+        limiter.release(slow, true, 0);
+        assertEquals("HALF_OPEN", limiter.getState());
+        assertRefused(limiter);
+        
+        // The probe failing reopens the breaker
+        limiter.release(true, false, 0);
+        assertEquals("OPEN", limiter.getState());
+        assertEquals(0, limiter.getInFlight());
+    }
+    
+    private void assertRefused(AdaptiveLimiter limiter) {
+        try {
+            limiter.acquire();
+            fail("Expected query to be refused");
+        } catch (SourceUnavailableException e) {
+            // expected
+        }
+    }
+}
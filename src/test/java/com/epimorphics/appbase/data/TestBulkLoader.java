@@ -0,0 +1,120 @@
+/******************************************************************
+ * File:        TestBulkLoader.java
+ * Created by:  Dave Reynolds
+ * Created on:  5 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.jena.riot.RiotException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.BulkLoader;
+import com.epimorphics.appbase.data.impl.DatasetSparqlSource;
+import com.epimorphics.appbase.data.impl.TDBSparqlSource;
+import com.epimorphics.util.FileUtil;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestBulkLoader {
+    static final String TEST = "http://localhost/test/def#";
+    static final String GRAPH = "http://localhost/test/graph";
+
+    protected App app;
+    protected File testDir;
+
+    @Before
+    public void setup() throws IOException {
+        testDir = Files.createTempDirectory("testbulk").toFile();
+        app = new App("bulk load test");
+    }
+
+    @After
+    public void cleanup() {
+        app.shutdown();
+        FileUtil.deleteDirectory(testDir);
+    }
+
+    @Test
+    public void testTDBLoad() throws IOException {
+        TDBSparqlSource source = new TDBSparqlSource();
+        source.setLocation( new File(testDir, "tdb").getPath() );
+        checkLoad(source);
+    }
+
+    @Test
+    public void testDatasetLoad() throws IOException {
+        checkLoad( new DatasetSparqlSource() );
+    }
+
+    protected void checkLoad(SparqlSource source) throws IOException {
+        app.addComponent("source", source);
+        app.startup();
+
+        BulkLoader loader = new BulkLoader(source);
+        loader.setChunkSize(7);
+        assertEquals(100, loader.load(GRAPH, writeFile(100)));
+        assertEquals(100, loader.getTripleCount());
+        assertEquals(100, countGraph(source));
+
+        // Reloading replaces the graph
+        long generation = source.getGeneration();
+        assertEquals(30, loader.load(GRAPH, writeFile(30)));
+        assertEquals(30, countGraph(source));
+        assertNull( loader.getFailure() );
+        if (source instanceof TDBSparqlSource) {
+            // Only the final swap changes the generation, not each chunk
+            assertEquals(generation + 1, source.getGeneration());
+        }
+
+        // A broken file leaves the old graph in place
+        String file = writeFile(20);
+        FileWriter out = new FileWriter(file, true);
+        out.write("<" + TEST + "broken> <" + RDFS.label + "> \n");
+        out.close();
+        try {
+            loader.load(GRAPH, file);
+            fail("Expected parse error");
+        } catch (RiotException e) {
+            // expected
+        }
+        assertNotNull( loader.getFailure() );
+        assertEquals(30, countGraph(source));
+        assertFalse( source.getAccessor().containsModel(BulkLoader.STAGING_PREFIX + GRAPH) );
+    }
+
+    protected String writeFile(int n) throws IOException {
+        File file = new File(testDir, "test.nt");
+        FileWriter out = new FileWriter(file);
+        try {
+            for (int i = 0; i < n; i++) {
+                out.write( String.format("<%si%d> <%s> \"label %d\" .\n", TEST, i, RDFS.label, i) );
+            }
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    protected int countGraph(SparqlSource source) {
+        ResultSet rs = source.select("SELECT (COUNT(*) AS ?n) WHERE {GRAPH <" + GRAPH + "> {?s ?p ?o}}");
+        return rs.next().getLiteral("n").getInt();
+    }
+}
@@ -0,0 +1,94 @@
+/******************************************************************
+ * File:        TestCachingSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  22 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.CachingSparqlSource;
+import com.epimorphics.appbase.data.impl.FileSparqlSource;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.update.UpdateFactory;
+
+public class TestCachingSource {
+    static final String PREFIX = "PREFIX test: <http://www.epimorphics.com/vocabs/test/>\n";
+
+    protected App app;
+    protected CachingSparqlSource source;
+
+    @Before
+    public void setup() {
+        app = new App("testing");
+        FileSparqlSource ss = new FileSparqlSource();
+        ss.setFiles( "src/test/data/source-tests/base" );
+        source = new CachingSparqlSource();
+        source.setSource(ss);
+        app.addComponent("ssource", ss);
+        app.addComponent("cached", source);
+        app.startup();
+    }
+
+    @Test
+    public void testSelectCache() {
+        assertEquals(5, count( source.select(PREFIX + "SELECT ?x WHERE {?x a test:Sample}") ));
+        assertEquals(5, count( source.select(PREFIX + "SELECT ?x   WHERE {\n  ?x a test:Sample\n}") ));
+        assertEquals(1, source.getMissCount());
+        assertEquals(1, source.getHitCount());
+
+        // Whitespace inside literals is significant
+        source.select(PREFIX + "SELECT ?x WHERE {?x test:string 'a string'}");
+        source.select(PREFIX + "SELECT ?x WHERE {?x test:string 'a  string'}");
+        assertEquals(3, source.getMissCount());
+    }
+
+    @Test
+    public void testComments() {
+        String query = PREFIX + "SELECT ?x WHERE {?x a test:Sample} # note";
+        assertEquals(1, count( source.select(query + "\nLIMIT 1") ));
+        // Here the LIMIT is part of the comment
+        assertEquals(5, count( source.select(query + " LIMIT 1") ));
+        assertEquals(2, source.getMissCount());
+
+        // Comments don't distinguish otherwise identical queries, a # in an IRI is not a comment
+        assertEquals(1, count( source.select(PREFIX + "# first\nSELECT ?x WHERE {?x a test:Sample} LIMIT 1") ));
+        assertEquals(2, source.getMissCount());
+        assertEquals(1, source.getHitCount());
+        source.select("SELECT ?x WHERE {?x a <http://www.epimorphics.com/vocabs/test#Sample>}");
+        source.select("SELECT ?x WHERE {?x a <http://www.epimorphics.com/vocabs/test#Other>}");
+        assertEquals(4, source.getMissCount());
+    }
+
+    @Test
+    public void testInvalidation() {
+        String query = PREFIX + "SELECT ?s WHERE {?x test:string ?s}";
+        assertEquals("a string", source.select(query).next().getLiteral("s").getLexicalForm());
+        assertTrue( source.construct(PREFIX + "CONSTRUCT {?x test:num ?n} WHERE {?x test:num ?n}").size() == 1 );
+
+        source.update( UpdateFactory.create(PREFIX
+                + "DELETE {?x test:string ?s} INSERT {?x test:string 'new string'} WHERE {?x test:string ?s}") );
+        assertEquals("new string", source.select(query).next().getLiteral("s").getLexicalForm());
+        assertEquals(0, source.getHitCount());
+    }
+
+    private int count(ResultSet results) {
+        int count = 0;
+        while (results.hasNext()) {
+            results.next();
+            count++;
+        }
+        assertFalse(results.hasNext());
+        return count;
+    }
+}
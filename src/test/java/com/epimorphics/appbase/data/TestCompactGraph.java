@@ -0,0 +1,56 @@
+/******************************************************************
+ * File:        TestCompactGraph.java
+ * Created by:  Dave Reynolds
+ * Created on:  12 May 2014
+ * 
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.epimorphics.appbase.data.impl.CompactGraph;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestCompactGraph {
+    static final String NS = BaseSourceTest.TEST_NS;
+
+    @Test
+    public void testFind() {
+        Model m = ModelFactory.createDefaultModel();
+        Resource a = m.createResource(NS + "a");
+        Resource b = m.createResource(NS + "b");
+        a.addProperty(RDFS.label, "a label").addProperty(RDFS.comment, "a comment").addProperty(RDFS.seeAlso, b);
+        a.addLiteral(m.createProperty(NS + "num"), 42);
+        b.addProperty(RDFS.label, "b label", "en");
+        Resource bnode = m.createResource();
+        a.addProperty(m.createProperty(NS + "p"), bnode);
+        bnode.addProperty(RDFS.label, "anon");
+        
+        Graph g = CompactGraph.copyOf( m.getGraph() );
+        assertEquals(m.size(), g.size());
+        
+        assertEquals(5, g.find(a.asNode(), Node.ANY, Node.ANY).toList().size());
+        assertEquals(1, g.find(a.asNode(), RDFS.label.asNode(), Node.ANY).toList().size());
+        assertEquals(3, g.find(Node.ANY, RDFS.label.asNode(), Node.ANY).toList().size());
+        assertEquals(1, g.find(bnode.asNode(), Node.ANY, Node.ANY).toList().size());
+        assertEquals(1, g.find(Node.ANY, Node.ANY, b.asNode()).toList().size());
+        assertTrue( g.contains(a.asNode(), RDFS.seeAlso.asNode(), b.asNode()) );
+        assertFalse( g.contains(b.asNode(), RDFS.seeAlso.asNode(), a.asNode()) );
+        assertFalse( g.find(b.asNode(), RDFS.comment.asNode(), Node.ANY).hasNext() );
+        
+        // Literal matching is by value, as for memory graphs
+        assertTrue( g.contains(a.asNode(), Node.ANY, m.createTypedLiteral(42).asNode()) );
+    }
+}
@@ -0,0 +1,219 @@
+/******************************************************************
+ * File:        TestDescriptionFetch.java
+ * Created by:  Dave Reynolds
+ * Created on:  9 May 2014
+ * 
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.core.PrefixService;
+import com.epimorphics.appbase.data.NodeDescription.Coverage;
+import com.epimorphics.appbase.data.impl.FileSparqlSource;
+import com.epimorphics.json.JSFullWriter;
+import com.epimorphics.tasks.SimpleProgressMonitor;
+import com.epimorphics.tasks.TaskState;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+
+/**
+ * Check the way WSource fetches descriptions for concurrent
+ * and repeated lookups.
+ */
+public class TestDescriptionFetch {
+    public static final String TEST_NS = BaseSourceTest.TEST_NS;
+    
+    protected App app;
+    protected WSource source;
+    protected CountingSource ssource;
+    
+    @Before
+    public void setup() {
+        app = new App("testing");
+        PrefixService prefixes = new PrefixService();
+        prefixes.setPrefixFile( "src/test/data/prefixes.ttl" );
+        app.addComponent("prefixes", prefixes);
+        
+        ssource = new CountingSource();
+        ssource.setFiles( "src/test/data/source-tests/base" );
+        
+        source = new WSource();
+        source.setName("wsource");
+        source.setSource(ssource);
+        
+        app.addComponent("ssource", ssource);
+        app.addComponent("wsource", source);
+        app.startup();
+    }
+    
+    @Test
+    public void testConcurrentMisses() throws InterruptedException {
+        final Node test = NodeFactory.createURI(TEST_NS + "test");
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    source.get(test).getPropertyValue("test:num");
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, ssource.describeCount.get());
+        assertEquals(42, source.get(test).getPropertyValue("test:num").asInt());
+        assertEquals(1, ssource.describeCount.get());
+    }
+    
+    @Test
+    public void testBatchedLabels() {
+        source.setBatchLabels(true);
+        source.startRequest();
+        List<String> labels = new ArrayList<>();
+        for (WQuerySolution row : source.select("SELECT ?x WHERE {?x a test:Sample} ORDER BY ?x")) {
+            labels.add( row.get("x").getLabel() );
+        }
+        // One query for the select, one for all the labels
+        assertEquals(2, source.getRequestQueryCount());
+        assertEquals("Pref label", labels.get(0));
+        assertEquals("name", labels.get(3));
+        source.endRequest();
+        assertEquals(0, source.getRequestQueryCount());
+        
+        // Outside a request nothing is batched or counted
+        for (WQuerySolution row : source.select("SELECT ?x WHERE {?x a test:Sample} ORDER BY ?x")) {
+            row.get("x");
+        }
+        assertEquals(0, source.getRequestQueryCount());
+        assertNull( source.getRequestState() );
+    }
+    
+    @Test
+    public void testWarmup() {
+        List<String> uris = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            uris.add(TEST_NS + "i" + i);
+        }
+        SimpleProgressMonitor monitor = new SimpleProgressMonitor("test");
+        source.warmup(uris, Coverage.FULL, monitor);
+        assertEquals(TaskState.Terminated, monitor.getState());
+        assertTrue( monitor.succeeded() );
+        assertEquals(1, ssource.describeCount.get());
+        
+        WNode i3 = source.get( NodeFactory.createURI(TEST_NS + "i3") );
+        assertTrue( i3.isDescribed(true) );
+        assertEquals("rdfs label", i3.getLabel());
+        assertEquals(1, ssource.describeCount.get());
+    }
+    
+    @Test
+    public void testNegativeCache() {
+        Node unknown = NodeFactory.createURI(TEST_NS + "unknown");
+        assertEquals(null, source.get(unknown).getPropertyValue("test:num"));
+        assertEquals(1, ssource.describeCount.get());
+        assertEquals(null, source.get(unknown).getPropertyValue("test:num"));
+        assertEquals(1, ssource.describeCount.get());
+        assertEquals(1, source.getNegativeCacheHitCount());
+        
+        // Absence is forgotten once the source changes
+        ssource.incrementGeneration();
+        assertEquals(null, source.get(unknown).getPropertyValue("test:num"));
+        assertEquals(2, ssource.describeCount.get());
+    }
+    
+    @Test
+    public void testStats() {
+        Node test = NodeFactory.createURI(TEST_NS + "test");
+        source.get(test).getPropertyValue("test:num");
+        // Wrapping a node with a cached description is neither a hit nor a miss
+        source.get(test).getPropertyValue("test:num");
+        source.describe( Arrays.asList(new WNode(source, test)) );
+        source.label( Arrays.asList(new WNode(source, test)) );
+        WSourceStats stats = source.getStats();
+        assertEquals(1, stats.getFullMisses());
+        assertEquals(1, stats.getFullHits());
+        assertEquals(0, stats.getLabelMisses());
+        assertEquals(1, stats.getLabelHits());
+        assertEquals(1, stats.getLoadCount());
+        assertEquals(2.0 / 3.0, stats.getHitRatio(), 1e-6);
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JSFullWriter out = new JSFullWriter(bos);
+        stats.writeTo(out);
+        out.finishOutput();
+        JsonObject json = JSON.parse( bos.toString() );
+        assertEquals(1, json.get("loads").getAsNumber().value().intValue());
+        assertEquals(1, json.get("size").getAsNumber().value().intValue());
+        
+        stats.reset();
+        assertEquals(0, stats.getLoadCount());
+    }
+    
+    @Test
+    public void testUnavailableSource() {
+        Node test = NodeFactory.createURI(TEST_NS + "test");
+        assertEquals(42, source.get(test).getPropertyValue("test:num").asInt());
+        long generation = ssource.getGeneration();
+        
+        ssource.incrementGeneration();
+        ssource.unavailable = true;
+        
+        // Out of date description is served but not marked as current
+        assertEquals(42, source.get(test).getPropertyValue("test:num").asInt());
+        assertEquals(generation, source.cache.get(test).getGeneration());
+        assertNull( source.getCached(test) );
+        
+        // Nothing to fall back on for a node which isn't cached
+        try {
+            source.get( NodeFactory.createURI(TEST_NS + "i1") ).getPropertyValue("test:num");
+            fail("Expected source to be unavailable");
+        } catch (SourceUnavailableException e) {
+            // expected
+        }
+        
+        // Fresh description replaces the stale one once the source is back
+        ssource.unavailable = false;
+        assertEquals(42, source.get(test).getPropertyValue("test:num").asInt());
+        assertEquals(ssource.getGeneration(), source.cache.get(test).getGeneration());
+    }
+    
+    public static class CountingSource extends FileSparqlSource {
+        AtomicInteger describeCount = new AtomicInteger();
+        volatile boolean unavailable = false;
+        
+        @Override
+        public Graph[] describeEach(String... resources) {
+            describeCount.incrementAndGet();
+            if (unavailable) {
+                throw new SourceUnavailableException("Simulated refusal");
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            return super.describeEach(resources);
+        }
+    }
+}
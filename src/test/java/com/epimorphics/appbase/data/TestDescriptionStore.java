@@ -0,0 +1,193 @@
+/******************************************************************
+ * File:        TestDescriptionStore.java
+ * Created by:  Dave Reynolds
+ * Created on:  14 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.core.PrefixService;
+import com.epimorphics.appbase.data.NodeDescription.Coverage;
+import com.epimorphics.appbase.data.TestDescriptionFetch.CountingSource;
+import com.epimorphics.appbase.data.impl.DescriptionStore;
+import com.epimorphics.util.FileUtil;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.mem.GraphMem;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Check the persistent second level description cache
+ */
+public class TestDescriptionStore {
+    public static final String TEST_NS = BaseSourceTest.TEST_NS;
+    static final Node TEST = NodeFactory.createURI(TEST_NS + "test");
+
+    protected File storeDir;
+    protected App app;
+    protected WSource source;
+    protected CountingSource ssource;
+
+    @Before
+    public void setup() throws IOException {
+        storeDir = Files.createTempDirectory("teststore").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        if (app != null) {
+            app.shutdown();
+        }
+        FileUtil.deleteDirectory(storeDir);
+    }
+
+    protected void start(String epoch, long ttl) {
+        if (app != null) {
+            app.shutdown();
+        }
+        app = new App("testing");
+        PrefixService prefixes = new PrefixService();
+        prefixes.setPrefixFile( "src/test/data/prefixes.ttl" );
+        app.addComponent("prefixes", prefixes);
+
+        ssource = new CountingSource();
+        ssource.setFiles( "src/test/data/source-tests/base" );
+
+        source = new WSource();
+        source.setName("wsource");
+        source.setSource(ssource);
+        source.setPersistentCache( storeDir.getPath() );
+        source.setPersistentCacheTTL(ttl);
+        if (epoch != null) {
+            source.setPersistentCacheEpoch(epoch);
+        }
+
+        app.addComponent("ssource", ssource);
+        app.addComponent("wsource", source);
+        app.startup();
+    }
+
+    @Test
+    public void testRoundTrip() throws InterruptedException {
+        start("v1", 0);
+        assertEquals("42", source.get(TEST).getPropertyValue("test:num").getLabel());
+        assertEquals(1, ssource.describeCount.get());
+        waitForStore(source.store, TEST);
+
+        source.resetCache();
+        assertEquals("42", source.get(TEST).getPropertyValue("test:num").getLabel());
+        assertEquals(1, ssource.describeCount.get());
+        assertEquals(1, source.getStats().getStoreHits());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        DescriptionStore store = new DescriptionStore(storeDir, 200, null);
+        try {
+            Graph g = new GraphMem();
+            g.add( new Triple(TEST, RDFS.label.asNode(), NodeFactory.createLiteral("test")) );
+            store.put( new NodeDescription(TEST, g, Coverage.FULL) );
+            waitForStore(store, TEST);
+            Thread.sleep(300);
+            assertNull( store.get(TEST, Coverage.FULL, 0) );
+            assertEquals(0, store.load(10, 0).size());
+            assertEquals(1, store.size());
+        } finally {
+            store.close();
+        }
+        
+        // Expired descriptions are removed from disk when the store is reopened
+        store = new DescriptionStore(storeDir, 200, null);
+        try {
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testFetchTime() throws InterruptedException {
+        DescriptionStore store = new DescriptionStore(storeDir, 0, "v1");
+        try {
+            Graph g = new GraphMem();
+            g.add( new Triple(TEST, RDFS.label.asNode(), NodeFactory.createLiteral("test")) );
+            store.put( new NodeDescription(TEST, g, Coverage.FULL), 1000 );
+            waitForStore(store, TEST);
+            // Valid against the time it was fetched, not when it was written
+            assertNotNull( store.get(TEST, Coverage.FULL, 500) );
+            assertNull( store.get(TEST, Coverage.FULL, 2000) );
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testInvalidation() throws InterruptedException {
+        start("v1", 0);
+        source.get(TEST).getPropertyValue("test:num");
+        waitForStore(source.store, TEST);
+
+        ssource.update( UpdateFactory.create("PREFIX test: <" + TEST_NS + "> "
+                + "DELETE {?x test:num ?n} INSERT {?x test:num 43} WHERE {?x test:num ?n}") );
+        source.resetCache();
+        assertEquals("43", source.get(TEST).getPropertyValue("test:num").getLabel());
+        assertEquals(2, ssource.describeCount.get());
+        assertEquals(0, source.getStats().getStoreHits());
+    }
+
+    @Test
+    public void testRestart() throws InterruptedException {
+        start("v1", 0);
+        source.get(TEST).getPropertyValue("test:num");
+        waitForStore(source.store, TEST);
+
+        // Same epoch, cache is refilled from the store
+        start("v1", 0);
+        waitForCache(TEST);
+        assertEquals("42", source.get(TEST).getPropertyValue("test:num").getLabel());
+        assertEquals(0, ssource.describeCount.get());
+
+        // Data may have changed, store is discarded
+        start("v2", 0);
+        assertNull( source.store.get(TEST, Coverage.FULL, 0) );
+        source.get(TEST).getPropertyValue("test:num");
+        assertEquals(1, ssource.describeCount.get());
+        waitForStore(source.store, TEST);
+
+        start(null, 0);
+        assertNull( source.store.get(TEST, Coverage.FULL, 0) );
+    }
+
+    protected void waitForStore(DescriptionStore store, Node node) throws InterruptedException {
+        for (int i = 0; i < 100 && store.get(node, Coverage.FULL, 0) == null; i++) {
+            Thread.sleep(20);
+        }
+        assertNotNull( store.get(node, Coverage.FULL, 0) );
+    }
+
+    protected void waitForCache(Node node) throws InterruptedException {
+        for (int i = 0; i < 100 && source.getCached(node) == null; i++) {
+            Thread.sleep(20);
+        }
+        assertNotNull( source.getCached(node) );
+    }
+}
@@ -0,0 +1,214 @@
+/******************************************************************
+ * File:        TestHedge.java
+ * Created by:  Dave Reynolds
+ * Created on:  9 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.RemoteSparqlSource;
+import com.epimorphics.appbase.data.impl.ReplicaSet.Replica;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
+
+/**
+ * Check hedged queries using simulated endpoints whose response time
+ * and success are set for each query.
+ */
+public class TestHedge {
+    static final long HEDGE_DELAY = 50;
+
+    protected App app;
+    protected HedgedSource source;
+
+    @Before
+    public void setup() {
+        app = new App("hedge test");
+        source = new HedgedSource();
+        source.setEndpoint("http://a/sparql,http://b/sparql");
+        source.setHedgeDelay(HEDGE_DELAY);
+        source.setHealthCheckInterval(0);
+        app.addComponent("source", source);
+        app.startup();
+    }
+
+    @After
+    public void cleanup() {
+        app.shutdown();
+    }
+
+    @Test
+    public void testFastQuery() {
+        source.plan( new Call(10, false) );
+        assertEquals("0", source.query());
+        assertEquals(1, source.calls.size());
+        assertEquals(0, source.getHedgeCount());
+    }
+
+    @Test
+    public void testPrimaryWins() throws InterruptedException {
+        source.plan( new Call(200, false), new Call(2000, false) );
+        assertEquals("0", source.query());
+        assertEquals(1, source.getHedgeCount());
+        assertEquals(0, source.getHedgeWinCount());
+        assertFalse( source.calls.get(0).url.equals(source.calls.get(1).url) );
+        assertTrue( source.calls.get(1).aborted.await(1, TimeUnit.SECONDS) );
+        assertEquals(1, source.calls.get(0).aborted.getCount());
+    }
+
+    @Test
+    public void testHedgeWins() throws InterruptedException {
+        source.plan( new Call(5000, false), new Call(10, false) );
+        long start = System.currentTimeMillis();
+        assertEquals("1", source.query());
+        assertTrue( System.currentTimeMillis() - start < 2000 );
+        assertEquals(1, source.getHedgeCount());
+        assertEquals(1, source.getHedgeWinCount());
+        assertTrue( source.calls.get(0).aborted.await(0, TimeUnit.SECONDS) );
+        assertEquals(1, source.calls.get(1).aborted.getCount());
+    }
+
+    @Test
+    public void testOneFails() {
+        // Original fails after the duplicate was sent
+        source.plan( new Call(150, true), new Call(300, false) );
+        assertEquals("1", source.query());
+
+        // Duplicate fails first
+        source.plan( new Call(300, false), new Call(10, true) );
+        assertEquals("0", source.query());
+        assertEquals(2, source.getHedgeCount());
+        assertEquals(1, source.getHedgeWinCount());
+    }
+
+    @Test
+    public void testBothFail() {
+        source.plan( new Call(150, true), new Call(200, true) );
+        try {
+            source.query();
+            fail("Expected query to fail");
+        } catch (QueryExceptionHTTP e) {
+            // expected
+        }
+        assertEquals(2, source.calls.size());
+        assertFalse( source.calls.get(0).url.equals(source.calls.get(1).url) );
+    }
+
+    @Test
+    public void testNoOtherReplica() {
+        source.markDown(1);
+        source.plan( new Call(200, false) );
+        assertEquals("0", source.query());
+        // The only other replica is down, so no duplicate is sent
+        assertEquals(1, source.calls.size());
+        assertEquals(0, source.getHedgeCount());
+    }
+
+    /**
+     * Behaviour of one simulated query execution
+     */
+    static class Call implements InvocationHandler {
+        final long delay;
+        final boolean fail;
+        final CountDownLatch aborted = new CountDownLatch(1);
+        String url;
+        String id;
+
+        Call(long delay, boolean fail) {
+            this.delay = delay;
+            this.fail = fail;
+        }
+
+        String perform() {
+            try {
+                if (aborted.await(delay, TimeUnit.MILLISECONDS)) {
+                    throw new QueryCancelledException();
+                }
+            } catch (InterruptedException e) {
+                throw new QueryCancelledException();
+            }
+            if (fail) {
+                throw new QueryExceptionHTTP(503, "Simulated failure");
+            }
+            return id;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("abort")) {
+                aborted.countDown();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Call " + id;
+            } else if (method.getReturnType() == boolean.class) {
+                return false;
+            } else if (method.getReturnType() == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    static class HedgedSource extends RemoteSparqlSource {
+        List<Call> planned = new ArrayList<>();
+        List<Call> calls = new ArrayList<>();
+
+        synchronized void plan(Call...calls) {
+            planned.addAll( Arrays.asList(calls) );
+            this.calls.clear();
+        }
+
+        // Take a replica out of rotation by failing queries sent to it
+        void markDown(int index) {
+            Replica other = replicas.getReplicas().get(1 - index);
+            for (int i = 0; i < replicaFailures; i++) {
+                replicas.release(replicas.acquire(other), false, 0);
+            }
+        }
+
+        String query() {
+            return execute("SELECT * WHERE {?s ?p ?o}", 0, new Execution<String>() {
+                @Override
+                public String run(QueryExecution qexec) {
+                    return ((Call)Proxy.getInvocationHandler(qexec)).perform();
+                }
+            });
+        }
+
+        @Override
+        protected synchronized QueryExecution createExecution(String url, String queryString) {
+            Call call = planned.remove(0);
+            call.url = url;
+            call.id = Integer.toString( calls.size() );
+            calls.add(call);
+            return (QueryExecution) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{QueryExecution.class}, call);
+        }
+    }
+}
@@ -12,6 +12,13 @@ package com.epimorphics.appbase.data;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.riot.WebContent;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -24,6 +31,9 @@ import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.update.UpdateFactory;
 import com.hp.hpl.jena.vocabulary.RDFS;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 public class TestRemoteSource {
     protected static final String TEST = "http://localhost/test/def#";
@@ -85,6 +95,53 @@ public class TestRemoteSource {
         app.shutdown();
     }
     
+    @Test
+    public void testFormatFallback() throws IOException {
+        // Stand-in endpoint which refuses TSV, as some do
+        final List<String> accepts = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/test/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String accept = exchange.getRequestHeaders().getFirst("Accept");
+                accepts.add(accept);
+                if (accept.contains(WebContent.contentTypeTextTSV)) {
+                    exchange.sendResponseHeaders(406, -1);
+                } else {
+                    byte[] body = ("<?xml version='1.0'?><sparql xmlns='http://www.w3.org/2005/sparql-results#'>"
+                            + "<head><variable name='x'/></head><results><result><binding name='x'>"
+                            + "<uri>" + TEST + "i1</uri></binding></result></results></sparql>").getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", WebContent.contentTypeResultsXML);
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        App app = new App("format fallback test");
+        try {
+            RemoteSparqlSource rs = new RemoteSparqlSource();
+            rs.setEndpoint("http://localhost:" + server.getAddress().getPort() + "/test/query");
+            app.addComponent("source", rs);
+            app.startup();
+            
+            for (int i = 0; i < 2; i++) {
+                ResultSet results = rs.select("SELECT ?x WHERE {?x ?p ?o}");
+                assertTrue( results.hasNext() );
+                assertEquals( TEST + "i1", results.next().getResource("x").getURI() );
+            }
+            // Refused once, after which the source sticks to XML
+            assertEquals(3, accepts.size());
+            assertEquals(WebContent.contentTypeResultsXML, accepts.get(2));
+        } finally {
+            app.shutdown();
+            server.stop(0);
+        }
+    }
+    
     private void checkLabels(String[] labels) {
         ResultSet rs = source.select("PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#> SELECT * WHERE { GRAPH ?g { ?i rdfs:label ?label } } ORDER BY ?g");
 
@@ -0,0 +1,104 @@
+/******************************************************************
+ * File:        TestReplicaSet.java
+ * Created by:  Dave Reynolds
+ * Created on:  28 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.epimorphics.appbase.data.impl.ReplicaSet;
+import com.epimorphics.appbase.data.impl.ReplicaSet.Replica;
+
+public class TestReplicaSet {
+    static final long MS = 1000000;
+
+    @Test
+    public void testLeastOutstanding() {
+        ReplicaSet rs = new ReplicaSet(Arrays.asList("http://a/sparql", "http://b/sparql", "http://c/sparql"), 2, 1000);
+        Replica r1 = rs.acquire();
+        Replica r2 = rs.acquire();
+        Replica r3 = rs.acquire();
+        assertNotSame(r1, r2);
+        assertNotSame(r2, r3);
+        assertNotSame(r1, r3);
+
+        // Ties go to the fastest
+        rs.release(r1, true, 50 * MS);
+        rs.release(r2, true, 10 * MS);
+        rs.release(r3, true, 20 * MS);
+        assertSame(r2, rs.acquire());
+        assertSame(r3, rs.acquire());
+    }
+
+    @Test
+    public void testRemoval() throws InterruptedException {
+        ReplicaSet rs = new ReplicaSet(Arrays.asList("http://a/sparql", "http://b/sparql"), 2, 100);
+        Replica bad = rs.getReplicas().get(0);
+        Replica good = rs.getReplicas().get(1);
+        for (int i = 0; i < 2; i++) {
+            assertSame(bad, rs.acquire());
+            rs.release(bad, false, 0);
+        }
+        assertFalse(bad.isHealthy());
+        for (int i = 0; i < 3; i++) {
+            assertSame(good, rs.acquire());
+        }
+
+        // After the retry time one trial query goes to the removed replica
+        Thread.sleep(150);
+        assertSame(bad, rs.acquire());
+        assertSame(good, rs.acquire());
+        rs.release(bad, true, MS);
+        assertTrue(bad.isHealthy());
+        assertEquals(4, good.getOutstanding());
+    }
+
+    @Test
+    public void testSingleEndpoint() {
+        ReplicaSet rs = new ReplicaSet(Arrays.asList("http://a/sparql"), 1, 1000);
+        Replica r = rs.acquire();
+        rs.release(r, false, 0);
+        assertTrue(r.isHealthy());
+        assertSame(r, rs.acquire());
+    }
+
+    @Test
+    public void testAvoid() {
+        ReplicaSet rs = new ReplicaSet(Arrays.asList("http://a/sparql", "http://b/sparql"), 1, 60000);
+        Replica a = rs.getReplicas().get(0);
+        Replica b = rs.getReplicas().get(1);
+        assertSame(b, rs.acquire(a));
+        rs.release(b, false, 0);
+        assertFalse(b.isHealthy());
+
+        // With every other replica down the avoided one is still used
+        assertSame(a, rs.acquire(a));
+
+        // A cancelled query records no outcome
+        long latency = (long) a.getLatency();
+        rs.cancel(a);
+        assertEquals(0, a.getOutstanding());
+        assertEquals(0, a.getQueryCount());
+        assertEquals(latency, (long) a.getLatency());
+        assertFalse(b.isHealthy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoEndpoints() {
+        new ReplicaSet(Collections.<String>emptyList(), 1, 1000);
+    }
+}
@@ -13,18 +13,38 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import com.epimorphics.appbase.data.impl.BaseSparqlSource;
+import com.epimorphics.appbase.data.impl.FileSparqlSource;
+import com.epimorphics.appbase.data.impl.ModelSparqlSource;
+import com.epimorphics.appbase.data.impl.WResultSetStream;
 import com.epimorphics.appbase.util.SQueryUtil;
 import com.epimorphics.util.PrefixUtils;
 import com.epimorphics.util.TestUtil;
 import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.hp.hpl.jena.sparql.core.DatasetGraph;
@@ -151,21 +171,256 @@ public class TestSource extends BaseSourceTest {
         }
     }
     
+    @Test
+    public void testStreamSelect() {
+        WResultSetStream results = source.streamSelect("SELECT ?x WHERE {?x a test:Sample} ORDER BY ?x");
+        int count = 0;
+        for (WQuerySolution row : results) {
+            assertTrue( row.get("x").isURIResource() );
+            count++;
+        }
+        assertEquals(5, count);
+        assertTrue( results.isClosed() );
+        
+        // Abandoned part way through, released at end of request
+        source.startRequest();
+        results = source.streamSelect("SELECT ?x WHERE {?x a test:Sample}");
+        assertTrue( results.hasNext() );
+        results.next();
+        assertFalse( results.isClosed() );
+        source.endRequest();
+        assertTrue( results.isClosed() );
+        assertFalse( results.hasNext() );
+    }
+    
+    @Test
+    public void testAsync() throws Exception {
+        Future<WResultSet> samples = source.selectAsync("SELECT ?x WHERE {?x a test:Sample}");
+        Future<WResultSet> labels = source.selectAsync("SELECT ?l WHERE {?x rdfs:label ?l}");
+        Future<Graph[]> described = ssource.describeEachAsync(TEST_NS + "i1", TEST_NS + "i2");
+        
+        int count = 0;
+        for (Iterator<WQuerySolution> i = samples.get().iterator(); i.hasNext(); i.next()) count++;
+        assertEquals(5, count);
+        assertTrue( labels.get().iterator().hasNext() );
+        Graph[] graphs = described.get();
+        assertEquals(2, graphs.length);
+        assertTrue( graphs[1].size() > 0 );
+    }
+    
+    @Test
+    public void testChunkedDescribe() {
+        String[] uris = new String[]{TEST_NS + "i1", TEST_NS + "i2", TEST_NS + "i3", TEST_NS + "i4", TEST_NS + "i5", TEST_NS + "test"};
+        Graph[] whole = ssource.describeEach(uris);
+        ((BaseSparqlSource)ssource).setDescribeChunkSize(2);
+        Graph[] chunked = ssource.describeEach(uris);
+        assertEquals(uris.length, chunked.length);
+        for (int i = 0; i < uris.length; i++) {
+            assertTrue( chunked[i].isIsomorphicWith(whole[i]) );
+        }
+    }
+    
+    @Test
+    public void testCancelChunkedDescribe() throws Exception {
+        BlockingSource bs = new BlockingSource();
+        bs.setDescribeChunkSize(1);
+        try {
+            Future<Graph[]> described = bs.describeEachAsync(TEST_NS + "i1", TEST_NS + "i2", TEST_NS + "i3");
+            assertTrue( bs.started.await(5, TimeUnit.SECONDS) );
+            assertTrue( described.cancel(true) );
+            
+            // Every chunk which got as far as running its query is aborted
+            for (int i = 0; i < 500 && bs.running.get() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, bs.running.get());
+            assertEquals(bs.aborted.get(), bs.blocked.get());
+        } finally {
+            bs.shutdown();
+        }
+    }
+    
+    @Test
+    public void testTimeout() {
+        String query = "SELECT (COUNT(*) AS ?count) WHERE {?a ?b ?c . ?d ?e ?f . ?g ?h ?i . ?j ?k ?l . ?m ?n ?o}";
+        try {
+            source.select(50, query);
+            fail("Expected query to time out");
+        } catch (QueryCancelledException e) {
+            // expected
+        }
+        // The source is still usable
+        assertEquals(5, count( source.select("SELECT ?x WHERE {?x a test:Sample}") ));
+    }
+    
+    @Test
+    public void testPrepared() {
+        PreparedQuery query = source.prepare("SELECT ?l WHERE {?x rdfs:label ?l}");
+        assertTrue( query == source.prepare("SELECT ?l WHERE {?x rdfs:label ?l}") );
+        assertTrue( query.getQueryString().contains("<http://www.w3.org/2000/01/rdf-schema#>") );
+        
+        Resource i3 = ResourceFactory.createResource(TEST_NS + "i3");
+        Resource i5 = ResourceFactory.createResource(TEST_NS + "i5");
+        assertEquals(1, count( query.select("x", i3) ));
+        assertEquals("rdfs label", query.select("x", i3).iterator().next().get("l").getLabel());
+        assertEquals(2, count( query.select("x", i5) ));
+        assertEquals(count( source.select("SELECT ?l WHERE {?x rdfs:label ?l}", "x", i5) ), count( query.select("x", i5) ));
+        
+        // Only explicitly prepared queries are retained
+        int prepared = source.preparedQueries.size();
+        source.select("SELECT ?x WHERE {?x a test:Sample}");
+        source.select("SELECT ?l WHERE {?x rdfs:label ?l}", "x", i3);
+        assertEquals(prepared, source.preparedQueries.size());
+    }
+    
     @Test
     public void testUpdate() {
         assertTrue( ssource.isUpdateable() );
+        // Populate the description cache before the update
+        assertEquals("a string", getNode("test:test").getPropertyValue("test:string").getLabel());
+        long generation = ssource.getGeneration();
+        
         String update = "" +
         		"PREFIX test: <http://www.epimorphics.com/vocabs/test/> \n" +
         		"DELETE {?x test:string ?s}\n" +
         		"INSERT {?x test:string 'new string'}\n" +
-        		"WHERE {?x test:num 42}";
+        		"WHERE {?x test:num 42; test:string ?s}";
         ssource.update( UpdateFactory.create(update) );
+        assertTrue( ssource.getGeneration() > generation );
         
         WNode v = getNode("test:test").getPropertyValue("test:string");
         assertNotNull(v);
         assertEquals("new string", v.getLabel());
     }
     
+    @Test
+    public void testTransactional() throws InterruptedException {
+        final FileSparqlSource ts = new FileSparqlSource();
+        ts.setTransactional(true);
+        ts.setFiles( getTestFileDir() );
+        ts.startup(app);
+        String query = "SELECT ?x WHERE {?x a <" + TEST_NS + "Sample>}";
+        
+        // An open query doesn't block an update, and doesn't see it
+        ClosableResultSet results = ts.streamableSelect(query);
+        assertTrue( results.hasNext() );
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                ts.update( UpdateFactory.create("INSERT DATA {<" + TEST_NS + "i6> a <" + TEST_NS + "Sample>}") );
+            }
+        };
+        writer.start();
+        writer.join(5000);
+        assertFalse( writer.isAlive() );
+        int count = 0;
+        while (results.hasNext()) {
+            results.next();
+            count++;
+        }
+        assertEquals(5, count);
+        
+        ResultSet after = ts.select(query);
+        count = 0;
+        while (after.hasNext()) {
+            after.next();
+            count++;
+        }
+        assertEquals(6, count);
+    }
+    
+    @Test
+    public void testTransactionalNestedRead() {
+        FileSparqlSource ts = new FileSparqlSource();
+        ts.setTransactional(true);
+        ts.setFiles( getTestFileDir() );
+        ts.startup(app);
+        WSource ws = new WSource();
+        ws.setSource(ts);
+        ws.startup(app);
+        
+        // Labels are looked up while the stream still holds its read transaction
+        WResultSetStream results = ws.streamSelect("SELECT ?x WHERE {?x a test:Sample} ORDER BY ?x");
+        int count = 0;
+        for (WQuerySolution row : results) {
+            assertNotNull( row.get("x").getLabel() );
+            count++;
+        }
+        assertEquals(5, count);
+        assertTrue( results.isClosed() );
+        assertEquals(5, count( ws.select("SELECT ?x WHERE {?x a test:Sample}") ));
+    }
+    
+    /**
+     * Source whose describe queries block until they are aborted
+     */
+    static class BlockingSource extends ModelSparqlSource {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger blocked = new AtomicInteger();
+        final AtomicInteger aborted = new AtomicInteger();
+        
+        BlockingSource() {
+            super( ModelFactory.createDefaultModel() );
+        }
+        
+        @Override
+        protected QueryExecution start(Query query, QuerySolution bindings) {
+            final QueryExecution qexec = super.start(query, bindings);
+            final CountDownLatch abort = new CountDownLatch(1);
+            return (QueryExecution) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{QueryExecution.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("abort")) {
+                        abort.countDown();
+                    } else if (method.getName().equals("execDescribeTriples")) {
+                        running.incrementAndGet();
+                        blocked.incrementAndGet();
+                        started.countDown();
+                        try {
+                            // Like a query waiting on a remote endpoint, ignore interrupts
+                            if (awaitUninterruptibly(abort)) {
+                                aborted.incrementAndGet();
+                                throw new QueryCancelledException();
+                            }
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                    try {
+                        return method.invoke(qexec, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+        }
+    }
+    
+    private static boolean awaitUninterruptibly(CountDownLatch latch) {
+        long end = System.currentTimeMillis() + 10000;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return latch.await(end - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private int count(WResultSet results) {
+        int count = 0;
+        for (Iterator<WQuerySolution> i = results.iterator(); i.hasNext(); i.next()) count++;
+        return count;
+    }
+    
     private void checkLabel(DatasetGraph dsg, String iN, String label) {
         Node i1 = NodeFactory.createURI(TEST_NS + iN);
         Graph g1 = dsg.getGraph(i1);
@@ -0,0 +1,116 @@
+/******************************************************************
+ * File:        TestTDBSource.java
+ * Created by:  Dave Reynolds
+ * Created on:  4 Jun 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.appbase.core.App;
+import com.epimorphics.appbase.data.impl.TDBSparqlSource;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestTDBSource {
+    static final String TEST = "http://localhost/test/def#";
+    static final String QUERY = "SELECT ?x WHERE {?x <" + RDFS.label + "> ?l}";
+
+    protected App app;
+    protected TDBSparqlSource source;
+
+    @Before
+    public void setup() throws IOException {
+        app = new App("tdb test");
+        source = new TDBSparqlSource();
+        source.setLocation( Files.createTempDirectory("tdbtest").toString() );
+        source.setRequestTransactions(true);
+        app.addComponent("tdb", source);
+        app.startup();
+
+        Model m = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 3; i++) {
+            m.createResource(TEST + "i" + i).addProperty(RDFS.label, "label " + i);
+        }
+        source.getAccessor().putModel(m);
+    }
+
+    @After
+    public void cleanup() {
+        app.shutdown();
+    }
+
+    @Test
+    public void testRequestTransaction() {
+        long start = source.getTransactionCount();
+        source.beginRequest();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(3, count( source.select(QUERY) ));
+        }
+        assertEquals(start + 1, source.getTransactionCount());
+
+        // An update during the request is seen by later queries
+        source.update( UpdateFactory.create("INSERT DATA {<" + TEST + "i3> <" + RDFS.label + "> 'label 3'}") );
+        assertEquals(4, count( source.select(QUERY) ));
+        source.endRequest();
+
+        // Outside a request each query has its own transaction
+        start = source.getTransactionCount();
+        source.select(QUERY);
+        source.select(QUERY);
+        assertEquals(start + 2, source.getTransactionCount());
+    }
+
+    @Test
+    public void testChunkedDescribe() {
+        source.setDescribeChunkSize(1);
+        source.beginRequest();
+        long start = source.getTransactionCount();
+        Graph[] graphs = source.describeEach(TEST + "i0", TEST + "i1", TEST + "i2");
+        // All the chunks are described within the request transaction
+        assertEquals(start + 1, source.getTransactionCount());
+        for (Graph graph : graphs) {
+            assertEquals(1, graph.size());
+        }
+        source.endRequest();
+    }
+
+    @Test
+    public void testNestedQueries() {
+        ClosableResultSet outer = source.streamableSelect(QUERY);
+        try {
+            assertTrue( outer.hasNext() );
+            outer.next();
+            // A second query while the first is still open shares its transaction
+            assertEquals(3, count( source.select(QUERY) ));
+        } finally {
+            outer.close();
+        }
+        assertEquals(3, count( source.select(QUERY) ));
+    }
+
+    private int count(ResultSet results) {
+        int count = 0;
+        while (results.hasNext()) {
+            results.next();
+            count++;
+        }
+        return count;
+    }
+}
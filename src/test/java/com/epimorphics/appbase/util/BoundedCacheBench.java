@@ -0,0 +1,67 @@
+/******************************************************************
+ * File:        BoundedCacheBench.java
+ * Created by:  Dave Reynolds
+ * Created on:  6 May 2014
+ * 
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.epimorphics.appbase.data.NodeDescription;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.mem.GraphMem;
+
+/**
+ * Rough benchmark of cache hit throughput, as seen by WSource lookups,
+ * under increasing numbers of threads. Not a unit test, run by hand.
+ */
+public class BoundedCacheBench {
+    static final int CACHE_SIZE = 1000;
+    static final int RUN_MS = 2000;
+    
+    public static void main(String[] args) throws InterruptedException {
+        final BoundedCache<Node, NodeDescription> cache = new BoundedCache<>(CACHE_SIZE);
+        final Node[] keys = new Node[CACHE_SIZE];
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            keys[i] = NodeFactory.createURI("http://localhost/test/i" + i);
+            cache.put(keys[i], new NodeDescription(keys[i], new GraphMem()));
+        }
+        
+        for (int threads : new int[]{1, 8, 32}) {
+            run(cache, keys, threads);      // warm up
+            long hits = run(cache, keys, threads);
+            System.out.println( String.format("%2d threads: %,d hits/s", threads, hits * 1000 / RUN_MS) );
+        }
+    }
+    
+    static long run(final BoundedCache<Node, NodeDescription> cache, final Node[] keys, int nthreads) throws InterruptedException {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(nthreads);
+        final long end = System.currentTimeMillis() + RUN_MS;
+        for (int t = 0; t < nthreads; t++) {
+            final int seed = t;
+            new Thread() {
+                public void run() {
+                    long count = 0;
+                    int i = seed;
+                    while (System.currentTimeMillis() < end) {
+                        for (int j = 0; j < 1000; j++) {
+                            i = (i + 7) % keys.length;
+                            if (cache.get(keys[i]) != null) count++;
+                        }
+                    }
+                    total.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return total.get();
+    }
+}
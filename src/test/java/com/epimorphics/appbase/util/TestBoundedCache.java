@@ -0,0 +1,130 @@
+/******************************************************************
+ * File:        TestBoundedCache.java
+ * Created by:  Dave Reynolds
+ * Created on:  6 May 2014
+ * 
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestBoundedCache {
+
+    @Test
+    public void testBasics() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertEquals("A", cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertNull(cache.get("c"));
+        assertEquals(2, cache.size());
+        
+        cache.put("a", "A2");
+        assertEquals("A2", cache.get("a"));
+        assertEquals(2, cache.size());
+        
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.size());
+        
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+    
+    @Test
+    public void testEviction() throws InterruptedException {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(10);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, "v" + i);
+        }
+        assertEquals(10, cache.size());
+        Thread.sleep(1);
+        // Keep the first entry recently used
+        assertNotNull( cache.get(0) );
+        cache.put(10, "v10");
+        assertTrue( cache.size() <= 10 );
+        assertNotNull( cache.get(0) );
+        assertNotNull( cache.get(10) );
+        assertNull( cache.get(1) );
+    }
+    
+    @Test
+    public void testLargeEviction() throws InterruptedException {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(1000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "v" + i);
+        }
+        Thread.sleep(1);
+        for (int i = 0; i < 500; i++) {
+            cache.get(i);
+        }
+        Thread.sleep(1);
+        for (int i = 1000; i < 1100; i++) {
+            cache.put(i, "v" + i);
+        }
+        assertTrue( cache.size() <= 1000 );
+        // Evicted entries should all come from those not used since they were added
+        for (int i = 0; i < 500; i++) {
+            assertNotNull( cache.get(i) );
+        }
+        assertNotNull( cache.get(1099) );
+    }
+    
+    @Test
+    public void testWeightBound() throws InterruptedException {
+        BoundedCache.Weigher<String> lengthWeigher = new BoundedCache.Weigher<String>() {
+            @Override
+            public long weigh(String value) {
+                return value.length();
+            }
+        };
+        BoundedCache<Integer, String> cache = new BoundedCache<>(100, 20, lengthWeigher);
+        for (int i = 0; i < 4; i++) {
+            cache.put(i, "12345");
+        }
+        assertEquals(4, cache.size());
+        assertEquals(20, cache.getWeight());
+        assertEquals(0, cache.getEvictionCount());
+        
+        Thread.sleep(1);
+        cache.put(4, "1234567890");
+        assertTrue( cache.getWeight() <= 20 );
+        assertNotNull( cache.get(4) );
+        assertEquals(3, cache.getEvictionCount());
+        
+        // Too heavy to cache at all
+        cache.put(5, "123456789012345678901");
+        assertNull( cache.get(5) );
+    }
+    
+    @Test
+    public void testConcurrentUse() throws InterruptedException {
+        final BoundedCache<Integer, Integer> cache = new BoundedCache<>(100);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 1000;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        cache.put(offset + i, i);
+                        cache.get(offset + i / 2);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue( cache.size() <= 100 );
+    }
+}
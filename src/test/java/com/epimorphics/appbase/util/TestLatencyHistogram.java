@@ -0,0 +1,51 @@
+/******************************************************************
+ * File:        TestLatencyHistogram.java
+ * Created by:  Dave Reynolds
+ * Created on:  29 May 2014
+ *
+ * (c) Copyright 2014, Epimorphics Limited
+ *
+ *****************************************************************/
+
+package com.epimorphics.appbase.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+    static final long MS = 1000000;
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0.0, h.getPercentile(95), 0.0);
+        for (int i = 0; i < 90; i++) {
+            h.record(1 * MS);
+        }
+        for (int i = 0; i < 10; i++) {
+            h.record(100 * MS);
+        }
+        assertEquals(100, h.getCount());
+        assertEquals(1.0, h.getPercentile(50), 0.2);
+        assertEquals(1.0, h.getPercentile(90), 0.2);
+        assertEquals(100.0, h.getPercentile(95), 20.0);
+    }
+
+    @Test
+    public void testDecay() {
+        LatencyHistogram h = new LatencyHistogram(100);
+        for (int i = 0; i < 99; i++) {
+            h.record(1 * MS);
+        }
+        assertEquals(99, h.getCount());
+        h.record(1 * MS);
+        assertEquals(50, h.getCount());
+
+        // Recent slow samples soon dominate
+        for (int i = 0; i < 60; i++) {
+            h.record(50 * MS);
+        }
+        assertEquals(50.0, h.getPercentile(50), 10.0);
+    }
+}